@@ -50,9 +50,50 @@ class HumanPlayer extends AbstractPlayer {
     }
 }
 
-class ComputerPlayer extends AbstractPlayer {
+// A computer player is also an observer: with pondering on, it searches the
+// expected reply while the opponent thinks and picks up the result if the
+// opponent's actual move matches it.
+class ComputerPlayer extends AbstractPlayer implements GameObserver {
+    private MoveStrategy strategy;
+    private Ponderer ponderer;
+    private Position expectedAfterMove;
+    
     public ComputerPlayer(String name, String symbol) {
+        this(name, symbol, new TablebaseStrategy(new ThreatSpaceStrategy(new AlphaBetaStrategy())));
+    }
+    
+    public ComputerPlayer(String name, String symbol, MoveStrategy strategy) {
         super(name, symbol);
+        this.strategy = strategy;
+    }
+    
+    public MoveStrategy getStrategy() {
+        return strategy;
+    }
+    
+    public void setStrategy(MoveStrategy strategy) {
+        if (ponderer != null) {
+            ponderer.cancel();
+        }
+        this.strategy = strategy;
+    }
+    
+    public boolean isPondering() {
+        return ponderer != null;
+    }
+    
+    public void setPondering(boolean enabled) {
+        if (enabled && ponderer == null) {
+            ponderer = new Ponderer();
+        } else if (!enabled && ponderer != null) {
+            ponderer.shutdown();
+            ponderer = null;
+        }
+    }
+    
+    // Number of threads the strategy may search with
+    public void setThreadCount(int threads) {
+        strategy.setThreadCount(threads);
     }
     
     @Override
@@ -65,16 +106,62 @@ class ComputerPlayer extends AbstractPlayer {
     
     // Additional method specific to ComputerPlayer
     public void makeAutomaticMove(Board board) throws InvalidMoveException {
-        // Simple implementation: find first available cell
-        for (int i = 0; i < board.getSize(); i++) {
-            for (int j = 0; j < board.getSize(); j++) {
-                if (board.isValidMove(i, j)) {
-                    makeMove(board, i, j);
-                    return;
-                }
+        int move = chooseMove(board);
+        makeMove(board, move / board.getCols(), move % board.getCols());
+    }
+    
+    // Picks a move (row * cols + col) without playing it
+    public int chooseMove(Board board) throws InvalidMoveException {
+        // The strategy works on a compact copy of the board, never the board itself
+        return chooseMove(Position.fromBoard(board, this));
+    }
+    
+    // Same, on a snapshot taken earlier; the position is owned by the player afterwards
+    public int chooseMove(Position position) throws InvalidMoveException {
+        int move = ponderer != null ? ponderer.takeResult(position) : -1;
+        if (move < 0) {
+            move = strategy.selectMove(position);
+        }
+        if (move < 0) {
+            throw new InvalidMoveException("No valid moves available");
+        }
+        if (ponderer != null) {
+            expectedAfterMove = position;
+            expectedAfterMove.make(move);
+        }
+        return move;
+    }
+    
+    @Override
+    public void onMoveMade(int row, int col, Player player) {
+        Position expected = expectedAfterMove;
+        if (ponderer == null || expected == null) {
+            return;
+        }
+        int move = row * expected.getRules().getCols() + col;
+        if (player == this) {
+            // Our move is on the board: start thinking about the reply
+            if (!expected.isEmpty(move)) {
+                ponderer.start(strategy, expected);
             }
+            expectedAfterMove = null;
+        } else {
+            ponderer.opponentMoved(move);
+        }
+    }
+    
+    // Called under the controller's lock, so the ponder search is only flagged
+    // to stop; the next chooseMove waits for it
+    @Override
+    public void onGameOver(Player winner) {
+        if (ponderer != null) {
+            ponderer.requestStop();
         }
-        throw new InvalidMoveException("No valid moves available");
+        expectedAfterMove = null;
+    }
+    
+    @Override
+    public void onGameUpdated(GameState state) {
     }
 }
 
@@ -85,147 +172,260 @@ class InvalidMoveException extends Exception {
     }
 }
 
-// 5. Model class for MVC pattern
-class Board {
-    private final int size;
-    private final Cell[][] cells;
+// 5. Model interface for MVC pattern
+interface Board {
+    int getSize();
+    int getRows();
+    int getCols();
+    GameRules getRules();
+    boolean isValidMove(int row, int col);
+    void placeMark(int row, int col, Player player);
+    Cell getCell(int row, int col);
+    Player getPlayerAt(int row, int col);
+    void clearMark(int row, int col);
+    void reset();
+    boolean checkWin();
+    boolean checkWinAt(int row, int col);
+    boolean isFull();
+    long getHash();
+    long getCanonicalHash();
+    // Next cell index >= from worth considering as a move, or -1 (see CandidateSet)
+    int nextCandidate(int from);
+}
+
+// Array-backed implementation of the board model
+// Marks are stored as player slots (0 = empty, 1 = first mover, 2 = second)
+// in a flat byte[], so reset() just clears the array.
+class ArrayBoard implements Board {
+    private final GameRules rules;
+    private final int rows;
+    private final int cols;
+    private final byte[] marks;
+    private final Player[] players;
+    private final ZobristHash hash;
+    private final CandidateSet candidates;
+    private Cell[] cells;
+    private int markCount;
     
-    public Board(int size) {
-        this.size = size;
-        cells = new Cell[size][size];
-        initializeBoard();
+    // Directions checked by the run-length win detector: row, column, diagonal, anti-diagonal
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+    
+    public ArrayBoard(int size) {
+        this(new GameRules(size));
     }
     
-    private void initializeBoard() {
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                cells[i][j] = new Cell(i, j);
-            }
-        }
+    public ArrayBoard(GameRules rules) {
+        this.rules = rules;
+        this.rows = rules.getRows();
+        this.cols = rules.getCols();
+        this.marks = new byte[rules.getCellCount()];
+        this.players = new Player[2];
+        this.hash = new ZobristHash(rules);
+        this.candidates = new CandidateSet(rules, CandidateSet.radiusFor(rules));
     }
     
+    // Number of rows; equals the side length on square boards
+    @Override
     public int getSize() {
-        return size;
+        return rows;
+    }
+    
+    @Override
+    public int getRows() {
+        return rows;
+    }
+    
+    @Override
+    public int getCols() {
+        return cols;
     }
     
+    @Override
+    public GameRules getRules() {
+        return rules;
+    }
+    
+    @Override
     public boolean isValidMove(int row, int col) {
-        return row >= 0 && row < size && col >= 0 && col < size && cells[row][col].isEmpty();
+        return row >= 0 && row < rows && col >= 0 && col < cols && marks[row * cols + col] == 0;
     }
     
+    @Override
     public void placeMark(int row, int col, Player player) {
-        cells[row][col].setPlayer(player);
+        int index = row * cols + col;
+        if (marks[index] == 0) {
+            markCount++;
+            candidates.add(index);
+        } else {
+            hash.toggle(marks[index] - 1, index);
+        }
+        int slot = slotOf(player);
+        marks[index] = (byte) (slot + 1);
+        hash.toggle(slot, index);
     }
     
-    public Cell getCell(int row, int col) {
-        return cells[row][col];
+    // Unmake counterpart of placeMark; also restores the hash
+    @Override
+    public void clearMark(int row, int col) {
+        int index = row * cols + col;
+        if (marks[index] != 0) {
+            hash.toggle(marks[index] - 1, index);
+            marks[index] = 0;
+            markCount--;
+            candidates.remove(index);
+        }
     }
     
-    public void reset() {
-        initializeBoard();
+    @Override
+    public long getHash() {
+        return hash.get();
     }
     
-    // Check for win conditions
-    public boolean checkWin() {
-        // Check rows
-        for (int i = 0; i < size; i++) {
-            if (!cells[i][0].isEmpty() && checkRowWin(i)) {
-                return true;
-            }
-        }
-        
-        // Check columns
-        for (int i = 0; i < size; i++) {
-            if (!cells[0][i].isEmpty() && checkColumnWin(i)) {
-                return true;
-            }
+    @Override
+    public long getCanonicalHash() {
+        return hash.getCanonical();
+    }
+    
+    @Override
+    public int nextCandidate(int from) {
+        return candidates.nextCandidate(from);
+    }
+    
+    @Override
+    public Player getPlayerAt(int row, int col) {
+        int mark = marks[row * cols + col];
+        return mark == 0 ? null : players[mark - 1];
+    }
+    
+    // Cell views are created on first use and reused for the lifetime of the board
+    @Override
+    public Cell getCell(int row, int col) {
+        if (cells == null) {
+            cells = new Cell[marks.length];
         }
-        
-        // Check diagonals
-        if (!cells[0][0].isEmpty() && checkDiagonalWin()) {
-            return true;
+        int index = row * cols + col;
+        if (cells[index] == null) {
+            cells[index] = new Cell(this, row, col);
         }
-        
-        return !cells[0][size - 1].isEmpty() && checkAntiDiagonalWin();
+        return cells[index];
     }
     
-    private boolean checkRowWin(int row) {
-        Player player = cells[row][0].getPlayer();
-        for (int i = 1; i < size; i++) {
-            if (cells[row][i].isEmpty() || cells[row][i].getPlayer() != player) {
-                return false;
+    @Override
+    public void reset() {
+        java.util.Arrays.fill(marks, (byte) 0);
+        players[0] = null;
+        players[1] = null;
+        hash.clear();
+        candidates.clear();
+        markCount = 0;
+    }
+    
+    // Slots are handed out in order of first placement, so the first mover is slot 0
+    private int slotOf(Player player) {
+        for (int i = 0; i < players.length; i++) {
+            if (players[i] == player) {
+                return i;
+            }
+            if (players[i] == null) {
+                players[i] = player;
+                return i;
             }
         }
-        return true;
+        throw new IllegalStateException("A board supports at most two players");
     }
     
-    private boolean checkColumnWin(int col) {
-        Player player = cells[0][col].getPlayer();
-        for (int i = 1; i < size; i++) {
-            if (cells[i][col].isEmpty() || cells[i][col].getPlayer() != player) {
-                return false;
+    // Check for win conditions anywhere on the board
+    @Override
+    public boolean checkWin() {
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (checkWinAt(i, j)) {
+                    return true;
+                }
             }
         }
-        return true;
+        return false;
     }
     
-    private boolean checkDiagonalWin() {
-        Player player = cells[0][0].getPlayer();
-        for (int i = 1; i < size; i++) {
-            if (cells[i][i].isEmpty() || cells[i][i].getPlayer() != player) {
-                return false;
+    // Only runs through the last move can have been completed by it, and
+    // each direction is scanned at most winLength - 1 cells either way
+    @Override
+    public boolean checkWinAt(int row, int col) {
+        byte mark = marks[row * cols + col];
+        if (mark == 0) {
+            return false;
+        }
+        int winLength = rules.getWinLength();
+        for (int[] direction : DIRECTIONS) {
+            int run = 1
+                    + countRun(row, col, direction[0], direction[1], mark, winLength - 1)
+                    + countRun(row, col, -direction[0], -direction[1], mark, winLength - 1);
+            if (run >= winLength) {
+                return true;
             }
         }
-        return true;
+        return false;
     }
     
-    private boolean checkAntiDiagonalWin() {
-        Player player = cells[0][size - 1].getPlayer();
-        for (int i = 1; i < size; i++) {
-            if (cells[i][size - 1 - i].isEmpty() || cells[i][size - 1 - i].getPlayer() != player) {
-                return false;
-            }
+    private int countRun(int row, int col, int dRow, int dCol, byte mark, int limit) {
+        int count = 0;
+        int r = row + dRow;
+        int c = col + dCol;
+        while (count < limit && r >= 0 && r < rows && c >= 0 && c < cols
+                && marks[r * cols + c] == mark) {
+            count++;
+            r += dRow;
+            c += dCol;
         }
-        return true;
+        return count;
     }
     
+    @Override
     public boolean isFull() {
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                if (cells[i][j].isEmpty()) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return markCount == marks.length;
     }
 }
 
 // 6. Model class for MVC pattern
+// A cell created by a board is a live view onto that board's storage,
+// so boards can hand out one flyweight per cell and reuse it across games.
 class Cell {
+    private final Board board;
     private final int row;
     private final int col;
     private Player player;
     
     public Cell(int row, int col) {
+        this(null, row, col);
+    }
+    
+    Cell(Board board, int row, int col) {
+        this.board = board;
         this.row = row;
         this.col = col;
         this.player = null;
     }
     
     public boolean isEmpty() {
-        return player == null;
+        return getPlayer() == null;
     }
     
     public Player getPlayer() {
-        return player;
+        return board != null ? board.getPlayerAt(row, col) : player;
     }
     
     public void setPlayer(Player player) {
-        this.player = player;
+        if (board == null) {
+            this.player = player;
+        } else if (player == null) {
+            board.clearMark(row, col);
+        } else {
+            board.placeMark(row, col, player);
+        }
     }
     
     public void clear() {
-        player = null;
+        setPlayer(null);
     }
     
     public int getRow() {
@@ -237,7 +437,8 @@ class Cell {
     }
     
     public String getSymbol() {
-        return isEmpty() ? "" : player.getSymbol();
+        Player current = getPlayer();
+        return current == null ? "" : current.getSymbol();
     }
 }
 
@@ -254,27 +455,60 @@ enum GameState {
 }
 
 // 9. Controller class for MVC pattern
+// Thread safety: every change to the game (starting it, adding players,
+// making a move) happens while holding the controller's lock, so moves
+// from different threads are applied one at a time and each sees the
+// board as the previous one left it. Observers are called on the thread
+// that made the change, while it still holds the lock, in move order.
+// The game status getters read volatile fields and never block; the board
+// itself is not thread-safe and should be read through withBoard, or from
+// an observer callback. Computer players search outside the lock.
 class GameController {
     private final Board board;
     private final java.util.List<Player> players;
     private final java.util.List<GameObserver> observers;
-    private int currentPlayerIndex;
-    private boolean gameOver;
-    private Player winner;
+    private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+    private volatile int currentPlayerIndex;
+    private volatile boolean gameOver;
+    private volatile Player winner;
+    private volatile int moveNumber;
     private final GameDataPersistence dataPersistence;
     
     public GameController(int boardSize) {
-        board = new Board(boardSize);
-        players = new java.util.ArrayList<>();
-        observers = new java.util.ArrayList<>();
+        this(new BitBoard(boardSize));
+    }
+    
+    // m,n,k variants, e.g. new GameController(15, 15, 5) for Gomoku
+    public GameController(int rows, int cols, int winLength) {
+        this(new BitBoard(new GameRules(rows, cols, winLength)));
+    }
+    
+    public GameController(Board board) {
+        this(board, new FileGameDataPersistence("game_data.txt"));
+    }
+    
+    // Pass a NoOpGameDataPersistence for games that should not be recorded
+    public GameController(Board board, GameDataPersistence dataPersistence) {
+        this.board = board;
+        players = new java.util.concurrent.CopyOnWriteArrayList<>();
+        observers = new java.util.concurrent.CopyOnWriteArrayList<>();
         currentPlayerIndex = 0;
         gameOver = false;
         winner = null;
-        dataPersistence = new FileGameDataPersistence("game_data.txt");
+        this.dataPersistence = dataPersistence;
     }
     
+    // Players that observe the game (e.g. a pondering ComputerPlayer) are registered as observers too
     public void addPlayer(Player player) {
-        players.add(player);
+        lock.lock();
+        try {
+            players.add(player);
+            if (player instanceof GameObserver) {
+                addObserver((GameObserver) player);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
     
     public void addObserver(GameObserver observer) {
@@ -285,26 +519,67 @@ class GameController {
         observers.remove(observer);
     }
     
+    // Closes the data persistence, e.g. releasing a shared result writer;
+    // results of later games are not saved
+    public void close() {
+        dataPersistence.close();
+    }
+    
+    // Delivers events to the observer on its own thread through a bounded
+    // queue; under DROP or COALESCE a slow observer never delays moves, under
+    // BLOCK only once the queue is full. close() it when done
+    public AsyncGameObserver addAsyncObserver(GameObserver observer, AsyncGameObserver.Policy policy, int capacity) {
+        AsyncGameObserver async = new AsyncGameObserver(this, observer, policy, capacity);
+        addObserver(async);
+        return async;
+    }
+    
     public void startNewGame() {
-        board.reset();
-        currentPlayerIndex = 0;
-        gameOver = false;
-        winner = null;
-        notifyGameUpdated();
+        lock.lock();
+        try {
+            board.reset();
+            currentPlayerIndex = 0;
+            gameOver = false;
+            winner = null;
+            moveNumber++;
+            notifyGameUpdated();
+        } finally {
+            lock.unlock();
+        }
     }
     
     public void makeMove(int row, int col) {
+        lock.lock();
+        try {
+            applyMove(getCurrentPlayer(), row, col);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // For callers on other threads: plays the move only if it is still the
+    // given player's turn, and tells whether it was played
+    public boolean tryMove(Player player, int row, int col) {
+        lock.lock();
+        try {
+            return getCurrentPlayer() == player && applyMove(player, row, col);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private boolean applyMove(Player currentPlayer, int row, int col) {
         if (gameOver) {
-            return;
+            return false;
         }
         
         try {
-            Player currentPlayer = getCurrentPlayer();
             currentPlayer.makeMove(board, row, col);
+            moveNumber++;
             
             notifyMoveMade(row, col, currentPlayer);
             
-            if (board.checkWin()) {
+            if (board.checkWinAt(row, col)) {
                 gameOver = true;
                 winner = currentPlayer;
                 notifyGameOver(winner);
@@ -317,11 +592,58 @@ class GameController {
                 nextPlayer();
                 notifyGameUpdated();
             }
+            return true;
+        } catch (InvalidMoveException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+    
+    // Lets a computer player whose turn it is choose and play its move. The
+    // search runs on a snapshot without holding the lock; its move is only
+    // played if nothing else moved in the meantime.
+    public void makeComputerMove() {
+        Position snapshot;
+        ComputerPlayer computer;
+        int expectedMoveNumber;
+        lock.lock();
+        try {
+            Player currentPlayer = getCurrentPlayer();
+            if (gameOver || !(currentPlayer instanceof ComputerPlayer)) {
+                return;
+            }
+            computer = (ComputerPlayer) currentPlayer;
+            snapshot = Position.fromBoard(board, computer);
+            expectedMoveNumber = moveNumber;
+        } finally {
+            lock.unlock();
+        }
+        
+        try {
+            int move = computer.chooseMove(snapshot);
+            lock.lock();
+            try {
+                if (moveNumber == expectedMoveNumber) {
+                    applyMove(computer, move / board.getCols(), move % board.getCols());
+                }
+            } finally {
+                lock.unlock();
+            }
         } catch (InvalidMoveException e) {
             System.err.println(e.getMessage());
         }
     }
     
+    // Runs the reader with the board while holding the lock, so it sees a consistent board
+    public <T> T withBoard(java.util.function.Function<Board, T> reader) {
+        lock.lock();
+        try {
+            return reader.apply(board);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
     private void saveGameResult() {
         GameResult result = new GameResult();
         result.setDate(new java.util.Date());
@@ -330,17 +652,24 @@ class GameController {
         } else {
             result.setResult("Tie");
         }
-        try {
-            dataPersistence.saveGameResult(result);
-        } catch (PersistenceException e) {
-            System.err.println("Failed to save game result: " + e.getMessage());
-        }
+        // Saved in the background, so the move path never waits for the disk
+        dataPersistence.saveGameResultAsync(result).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                Throwable cause = failure instanceof java.util.concurrent.CompletionException ? failure.getCause() : failure;
+                System.err.println("Failed to save game result: " + cause.getMessage());
+            }
+        });
     }
     
     public Player getCurrentPlayer() {
         return players.get(currentPlayerIndex);
     }
     
+    // In turn order
+    public java.util.List<Player> getPlayers() {
+        return java.util.Collections.unmodifiableList(players);
+    }
+    
     private void nextPlayer() {
         currentPlayerIndex = (currentPlayerIndex + 1) % players.size();
     }
@@ -372,6 +701,7 @@ class GameController {
         }
     }
     
+    // Not thread-safe: see the class comment
     public Board getBoard() {
         return board;
     }
@@ -382,10 +712,17 @@ class GameController {
 }
 
 // 10. View class for MVC pattern
-class TicTacToeView extends javax.swing.JFrame implements GameObserver {
+// Game events reach the view through a GameUpdateCoalescer, which a Swing
+// timer flushes once per frame: however many moves were made in between,
+// the view repaints only the cells that changed.
+class TicTacToeView extends javax.swing.JFrame implements BoardDiffListener {
+    private static final int REFRESH_MILLIS = 16;
+    
     private final int boardWidth = 600;
     private final int boardHeight = 650;
     private final GameController controller;
+    private final GameUpdateCoalescer updates;
+    private final javax.swing.Timer refreshTimer;
     
     private javax.swing.JLabel statusLabel;
     private javax.swing.JPanel boardPanel;
@@ -395,9 +732,13 @@ class TicTacToeView extends javax.swing.JFrame implements GameObserver {
     
     public TicTacToeView(GameController controller) {
         this.controller = controller;
-        controller.addObserver(this);
+        this.updates = new GameUpdateCoalescer(controller, this);
+        controller.addObserver(updates);
         
         initializeUI();
+        
+        refreshTimer = new javax.swing.Timer(REFRESH_MILLIS, e -> updates.flush());
+        refreshTimer.start();
     }
     
     private void initializeUI() {
@@ -436,17 +777,21 @@ class TicTacToeView extends javax.swing.JFrame implements GameObserver {
         
         // Board panel
         boardPanel = new javax.swing.JPanel();
-        int size = controller.getBoard().getSize();
-        boardPanel.setLayout(new java.awt.GridLayout(size, size));
-        buttons = new javax.swing.JButton[size][size];
+        int rows = controller.getBoard().getRows();
+        int cols = controller.getBoard().getCols();
+        boardPanel.setLayout(new java.awt.GridLayout(rows, cols));
+        buttons = new javax.swing.JButton[rows][cols];
         
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
+        // Scale the mark font down on larger boards (60pt on 3x3)
+        int fontSize = Math.max(10, 180 / Math.max(rows, cols));
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
                 final int row = i;
                 final int col = j;
                 buttons[i][j] = new javax.swing.JButton("");
-                buttons[i][j].setFont(new java.awt.Font("Arial", java.awt.Font.BOLD, 60));
+                buttons[i][j].setFont(new java.awt.Font("Arial", java.awt.Font.BOLD, fontSize));
                 buttons[i][j].setFocusPainted(false);
+                buttons[i][j].setMargin(new java.awt.Insets(0, 0, 0, 0));
                 buttons[i][j].addActionListener(e -> controller.makeMove(row, col));
                 boardPanel.add(buttons[i][j]);
             }
@@ -512,16 +857,26 @@ class TicTacToeView extends javax.swing.JFrame implements GameObserver {
         }
     }
     
+    // Runs on the EDT, from the refresh timer
     @Override
-    public void onGameUpdated(GameState state) {
-        updateStatus();
-        updateBoard();
+    public void onBoardDiff(BoardDiff diff) {
+        int cols = buttons[0].length;
+        for (int i = 0; i < diff.getChangedCount(); i++) {
+            int index = diff.getCell(i);
+            Player player = diff.getPlayer(i);
+            javax.swing.JButton button = buttons[index / cols][index % cols];
+            button.setText(player == null ? "" : player.getSymbol());
+            button.setBackground(null);
+        }
+        if (diff.isStatusChanged()) {
+            updateStatus();
+        }
+        if (diff.isGameEnded() && controller.isGameOver()) {
+            showGameOver(diff.getEndedWinner());
+        }
     }
     
-    @Override
-    public void onGameOver(Player winner) {
-        updateStatus();
-        
+    private void showGameOver(Player winner) {
         String message;
         if (winner != null) {
             message = winner.getName() + " (" + winner.getSymbol() + ") wins!";
@@ -542,8 +897,8 @@ class TicTacToeView extends javax.swing.JFrame implements GameObserver {
         // For simplicity, highlight all cells for now
         // In a real implementation, you would only highlight the winning line
         Board board = controller.getBoard();
-        for (int i = 0; i < board.getSize(); i++) {
-            for (int j = 0; j < board.getSize(); j++) {
+        for (int i = 0; i < board.getRows(); i++) {
+            for (int j = 0; j < board.getCols(); j++) {
                 if (!board.getCell(i, j).isEmpty()) {
                     buttons[i][j].setBackground(java.awt.Color.lightGray);
                 }
@@ -551,26 +906,29 @@ class TicTacToeView extends javax.swing.JFrame implements GameObserver {
         }
     }
     
-    @Override
-    public void onMoveMade(int row, int col, Player player) {
-        buttons[row][col].setText(player.getSymbol());
-    }
-    
-    private void updateBoard() {
-        Board board = controller.getBoard();
-        for (int i = 0; i < board.getSize(); i++) {
-            for (int j = 0; j < board.getSize(); j++) {
-                buttons[i][j].setText(board.getCell(i, j).getSymbol());
-                buttons[i][j].setBackground(null);
-            }
-        }
-    }
 }
 
 // 11. Interface for data persistence
-interface GameDataPersistence {
+interface GameDataPersistence extends AutoCloseable {
     void saveGameResult(GameResult result) throws PersistenceException;
     java.util.List<GameResult> loadGameResults() throws PersistenceException;
+    
+    // Completes once the result is stored; by default saves synchronously
+    default java.util.concurrent.CompletableFuture<Void> saveGameResultAsync(GameResult result) {
+        java.util.concurrent.CompletableFuture<Void> done = new java.util.concurrent.CompletableFuture<>();
+        try {
+            saveGameResult(result);
+            done.complete(null);
+        } catch (PersistenceException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+    
+    // Releases whatever the persistence holds open; nothing by default
+    @Override
+    default void close() {
+    }
 }
 
 // 12. Custom Exception for persistence
@@ -585,26 +943,101 @@ class PersistenceException extends Exception {
 }
 
 // 13. Implementation of data persistence
+// Results are appended through the BatchedGameResultWriter shared by every
+// persistence on the same file, which writes them in groups; a batch size of
+// 1 or less writes each result on its own, opening and closing the file
+// every time.
 class FileGameDataPersistence implements GameDataPersistence {
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+    
     private final String fileName;
+    private final int batchSize;
+    private final long maxDelayMillis;
+    private final BatchedGameResultWriter.FsyncPolicy fsyncPolicy;
+    private volatile BatchedGameResultWriter writer;
+    private final java.util.concurrent.atomic.AtomicBoolean closed = new java.util.concurrent.atomic.AtomicBoolean();
     
     public FileGameDataPersistence(String fileName) {
+        this(fileName, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS, BatchedGameResultWriter.FsyncPolicy.NEVER);
+    }
+    
+    public FileGameDataPersistence(String fileName, int batchSize, long maxDelayMillis,
+            BatchedGameResultWriter.FsyncPolicy fsyncPolicy) {
         this.fileName = fileName;
+        this.batchSize = batchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.writer = batchSize > 1
+                ? BatchedGameResultWriter.acquire(java.nio.file.Paths.get(fileName), batchSize, maxDelayMillis, fsyncPolicy)
+                : null;
     }
     
+    // The shared writer, replaced if it closed itself (its thread was interrupted)
+    private BatchedGameResultWriter writer() {
+        BatchedGameResultWriter current = writer;
+        if (current == null || !current.isClosed()) {
+            return current;
+        }
+        synchronized (this) {
+            if (writer == current && !closed.get()) {
+                writer = BatchedGameResultWriter.acquire(java.nio.file.Paths.get(fileName), batchSize,
+                        maxDelayMillis, fsyncPolicy);
+                current.release();
+            }
+            return writer;
+        }
+    }
+    
+    // Waits until the result is written; concurrent callers share one write
     @Override
     public void saveGameResult(GameResult result) throws PersistenceException {
+        if (closed.get()) {
+            throw new PersistenceException("Persistence for " + fileName + " is closed");
+        }
+        BatchedGameResultWriter shared = writer();
+        if (shared != null) {
+            BatchedGameResultWriter.await(shared.write(format(result), true));
+            return;
+        }
         try (java.io.BufferedWriter writer = new java.io.BufferedWriter(
                 new java.io.FileWriter(fileName, true))) {
-            writer.write(result.getDate().getTime() + "," + result.getResult());
+            writer.write(format(result));
             writer.newLine();
         } catch (java.io.IOException e) {
             throw new PersistenceException("Failed to save game result", e);
         }
     }
     
+    @Override
+    public java.util.concurrent.CompletableFuture<Void> saveGameResultAsync(GameResult result) {
+        BatchedGameResultWriter shared = writer();
+        if (shared == null || closed.get()) {
+            return GameDataPersistence.super.saveGameResultAsync(result);
+        }
+        return shared.write(format(result), false);
+    }
+    
+    private static String format(GameResult result) {
+        return result.getDate().getTime() + "," + result.getResult();
+    }
+    
+    // Releases the shared writer; the last persistence on the file writes out
+    // pending results and stops its thread
+    @Override
+    public synchronized void close() {
+        if (closed.compareAndSet(false, true) && writer != null) {
+            writer.release();
+        }
+    }
+    
     @Override
     public java.util.List<GameResult> loadGameResults() throws PersistenceException {
+        // Results still queued are part of the history too
+        BatchedGameResultWriter shared = writer();
+        if (shared != null && !closed.get()) {
+            shared.flush();
+        }
         java.util.List<GameResult> results = new java.util.ArrayList<>();
         
         java.io.File file = new java.io.File(fileName);
@@ -667,6 +1100,10 @@ class PlayerFactory {
     public static Player createComputerPlayer(String name, String symbol) {
         return new ComputerPlayer(name, symbol);
     }
+    
+    public static Player createComputerPlayer(String name, String symbol, MoveStrategy strategy) {
+        return new ComputerPlayer(name, symbol, strategy);
+    }
 }
 
 // 16. Main Game class
@@ -690,4 +1127,5099 @@ public class TicTacToe {
         // Start new game
         controller.startNewGame();
     }
+}
+
+// 17. Bitboard implementation of the board model
+// Each player's marks are kept as bits (row * cols + col) in a long[]; a board
+// up to 8x8 fits in a single long per player.
+class BitBoard implements Board {
+    private final GameRules rules;
+    private final int rows;
+    private final int cols;
+    private final int cellCount;
+    private final WinLines lines;
+    private final Player[] players;
+    private final long[][] marks;
+    private final ZobristHash hash;
+    private final CandidateSet candidates;
+    private Cell[] cells;
+    private int markCount;
+    
+    public BitBoard(int size) {
+        this(new GameRules(size));
+    }
+    
+    public BitBoard(GameRules rules) {
+        this.rules = rules;
+        this.rows = rules.getRows();
+        this.cols = rules.getCols();
+        this.cellCount = rules.getCellCount();
+        this.lines = WinLines.forRules(rules);
+        this.players = new Player[2];
+        this.marks = new long[2][lines.getWords()];
+        this.hash = new ZobristHash(rules);
+        this.candidates = new CandidateSet(rules, CandidateSet.radiusFor(rules));
+    }
+    
+    // Number of rows; equals the side length on square boards
+    @Override
+    public int getSize() {
+        return rows;
+    }
+    
+    @Override
+    public int getRows() {
+        return rows;
+    }
+    
+    @Override
+    public int getCols() {
+        return cols;
+    }
+    
+    @Override
+    public GameRules getRules() {
+        return rules;
+    }
+    
+    @Override
+    public boolean isValidMove(int row, int col) {
+        return row >= 0 && row < rows && col >= 0 && col < cols && slotAt(row * cols + col) < 0;
+    }
+    
+    @Override
+    public void placeMark(int row, int col, Player player) {
+        int index = row * cols + col;
+        int previous = slotAt(index);
+        if (previous >= 0) {
+            marks[previous][index >>> 6] &= ~(1L << index);
+            hash.toggle(previous, index);
+            markCount--;
+        } else {
+            candidates.add(index);
+        }
+        int slot = slotOf(player);
+        marks[slot][index >>> 6] |= 1L << index;
+        hash.toggle(slot, index);
+        markCount++;
+    }
+    
+    // Unmake counterpart of placeMark; also restores the hash
+    @Override
+    public void clearMark(int row, int col) {
+        int index = row * cols + col;
+        int slot = slotAt(index);
+        if (slot >= 0) {
+            marks[slot][index >>> 6] &= ~(1L << index);
+            hash.toggle(slot, index);
+            markCount--;
+            candidates.remove(index);
+        }
+    }
+    
+    @Override
+    public long getHash() {
+        return hash.get();
+    }
+    
+    @Override
+    public long getCanonicalHash() {
+        return hash.getCanonical();
+    }
+    
+    @Override
+    public int nextCandidate(int from) {
+        return candidates.nextCandidate(from);
+    }
+    
+    @Override
+    public Player getPlayerAt(int row, int col) {
+        int slot = slotAt(row * cols + col);
+        return slot < 0 ? null : players[slot];
+    }
+    
+    // Cell views are created on first use and reused for the lifetime of the board
+    @Override
+    public Cell getCell(int row, int col) {
+        if (cells == null) {
+            cells = new Cell[cellCount];
+        }
+        int index = row * cols + col;
+        if (cells[index] == null) {
+            cells[index] = new Cell(this, row, col);
+        }
+        return cells[index];
+    }
+    
+    @Override
+    public void reset() {
+        for (long[] playerMarks : marks) {
+            java.util.Arrays.fill(playerMarks, 0L);
+        }
+        players[0] = null;
+        players[1] = null;
+        hash.clear();
+        candidates.clear();
+        markCount = 0;
+    }
+    
+    @Override
+    public boolean checkWin() {
+        return lines.anyComplete(marks[0]) || lines.anyComplete(marks[1]);
+    }
+    
+    @Override
+    public boolean checkWinAt(int row, int col) {
+        int index = row * cols + col;
+        int slot = slotAt(index);
+        return slot >= 0 && lines.anyCompleteThrough(index, marks[slot]);
+    }
+    
+    @Override
+    public boolean isFull() {
+        return markCount == cellCount;
+    }
+    
+    // Returns the slot (0 or 1) holding the cell, or -1 when it is empty
+    private int slotAt(int index) {
+        long bit = 1L << index;
+        int word = index >>> 6;
+        if ((marks[0][word] & bit) != 0) {
+            return 0;
+        }
+        return (marks[1][word] & bit) != 0 ? 1 : -1;
+    }
+    
+    // Slots are handed out in order of first placement, so the first mover is slot 0
+    private int slotOf(Player player) {
+        for (int i = 0; i < players.length; i++) {
+            if (players[i] == player) {
+                return i;
+            }
+            if (players[i] == null) {
+                players[i] = player;
+                return i;
+            }
+        }
+        throw new IllegalStateException("A board supports at most two players");
+    }
+}
+
+// 18. Precomputed win-window masks shared by every board with the same rules
+// A window is any run of winLength cells along a row, column or diagonal.
+// Each window keeps only the words from its first cell to its last, so a
+// check costs O(winLength) words however large the board is.
+class WinLines {
+    private static final java.util.Map<GameRules, WinLines> CACHE = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+    
+    private final int words;
+    private final int lineCount;
+    private final long[] masks;
+    private final int[] firstWord;
+    private final int[] maskStart;
+    private final int[][] lineCells;
+    private final int[][] cellLines;
+    
+    public static WinLines forRules(GameRules rules) {
+        return CACHE.computeIfAbsent(rules, WinLines::new);
+    }
+    
+    private WinLines(GameRules rules) {
+        int rows = rules.getRows();
+        int cols = rules.getCols();
+        int winLength = rules.getWinLength();
+        this.words = (rules.getCellCount() + 63) >>> 6;
+        
+        java.util.List<int[]> windows = new java.util.ArrayList<>();
+        for (int[] direction : DIRECTIONS) {
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    int endRow = i + direction[0] * (winLength - 1);
+                    int endCol = j + direction[1] * (winLength - 1);
+                    if (endRow < 0 || endRow >= rows || endCol < 0 || endCol >= cols) {
+                        continue;
+                    }
+                    int[] window = new int[winLength];
+                    for (int step = 0; step < winLength; step++) {
+                        window[step] = (i + direction[0] * step) * cols + (j + direction[1] * step);
+                    }
+                    windows.add(window);
+                }
+            }
+        }
+        this.lineCount = windows.size();
+        this.lineCells = windows.toArray(new int[0][]);
+        this.firstWord = new int[lineCount];
+        this.maskStart = new int[lineCount + 1];
+        for (int line = 0; line < lineCount; line++) {
+            int[] window = lineCells[line];
+            int first = Math.min(window[0], window[window.length - 1]) >>> 6;
+            int last = Math.max(window[0], window[window.length - 1]) >>> 6;
+            firstWord[line] = first;
+            maskStart[line + 1] = maskStart[line] + last - first + 1;
+        }
+        this.masks = new long[maskStart[lineCount]];
+        
+        // Index the windows passing through each cell for last-move checks
+        int[] perCell = new int[rules.getCellCount()];
+        for (int[] window : lineCells) {
+            for (int index : window) {
+                perCell[index]++;
+            }
+        }
+        this.cellLines = new int[rules.getCellCount()][];
+        for (int index = 0; index < cellLines.length; index++) {
+            cellLines[index] = new int[perCell[index]];
+            perCell[index] = 0;
+        }
+        for (int line = 0; line < lineCount; line++) {
+            for (int index : lineCells[line]) {
+                masks[maskStart[line] + (index >>> 6) - firstWord[line]] |= 1L << index;
+                cellLines[index][perCell[index]++] = line;
+            }
+        }
+    }
+    
+    public int getWords() {
+        return words;
+    }
+    
+    public int getLineCount() {
+        return lineCount;
+    }
+    
+    public int[] getLineCells(int line) {
+        return lineCells[line];
+    }
+    
+    public int[] getLinesThrough(int index) {
+        return cellLines[index];
+    }
+    
+    public boolean anyComplete(long[] bits) {
+        for (int line = 0; line < lineCount; line++) {
+            if (isComplete(line, bits)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public boolean anyCompleteThrough(int index, long[] bits) {
+        for (int line : cellLines[index]) {
+            if (isComplete(line, bits)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Single-word variant for boards of up to 64 cells
+    public boolean anyCompleteThrough(int index, long bits) {
+        for (int line : cellLines[index]) {
+            long mask = masks[line];
+            if ((bits & mask) == mask) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public boolean isComplete(int line, long[] bits) {
+        int first = firstWord[line];
+        for (int m = maskStart[line]; m < maskStart[line + 1]; m++) {
+            long mask = masks[m];
+            if ((bits[first + m - maskStart[line]] & mask) != mask) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// 19. Rules of an m,n,k-game: an m x n board won by k marks in a row
+class GameRules {
+    private final int rows;
+    private final int cols;
+    private final int winLength;
+    
+    // Classic rules: a square board won by filling a whole line
+    public GameRules(int size) {
+        this(size, size, size);
+    }
+    
+    public GameRules(int rows, int cols, int winLength) {
+        if (rows < 1 || cols < 1) {
+            throw new IllegalArgumentException("Board must have at least one row and column");
+        }
+        if (winLength < 1 || winLength > Math.max(rows, cols)) {
+            throw new IllegalArgumentException("Win length must fit on a " + rows + "x" + cols + " board");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.winLength = winLength;
+    }
+    
+    public int getRows() {
+        return rows;
+    }
+    
+    public int getCols() {
+        return cols;
+    }
+    
+    public int getWinLength() {
+        return winLength;
+    }
+    
+    public int getCellCount() {
+        return rows * cols;
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof GameRules)) {
+            return false;
+        }
+        GameRules that = (GameRules) other;
+        return rows == that.rows && cols == that.cols && winLength == that.winLength;
+    }
+    
+    @Override
+    public int hashCode() {
+        return (rows * 31 + cols) * 31 + winLength;
+    }
+    
+    @Override
+    public String toString() {
+        return rows + "x" + cols + " (" + winLength + " in a row)";
+    }
+}
+
+// 20. Compact board copy used by the AI search
+// Cells hold 0 (empty), 1 (first mover) or 2 (second mover); moves are
+// cell indices (row * cols + col) and are applied with make/unmake.
+class Position {
+    private static final java.util.Map<GameRules, int[]> CENTER_FIRST = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final java.util.Map<GameRules, int[]> MOVE_RANK = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+    // Largest board whose base-3 encoding still fits in an int
+    private static final int MAX_TERNARY_CELLS = 19;
+    private static final int[] POWERS_OF_THREE = new int[MAX_TERNARY_CELLS];
+    
+    static {
+        POWERS_OF_THREE[0] = 1;
+        for (int i = 1; i < MAX_TERNARY_CELLS; i++) {
+            POWERS_OF_THREE[i] = POWERS_OF_THREE[i - 1] * 3;
+        }
+    }
+    
+    private final GameRules rules;
+    private final int rows;
+    private final int cols;
+    private final int winLength;
+    private final WinLines lines;
+    private final int[] moveOrder;
+    private final int[] moveRank;
+    private final byte[] cells;
+    private final ZobristHash hash;
+    private final CandidateSet candidates;
+    private final boolean tracksTernary;
+    private int ternaryIndex;
+    private int moveCount;
+    
+    public Position(GameRules rules) {
+        this.rules = rules;
+        this.rows = rules.getRows();
+        this.cols = rules.getCols();
+        this.winLength = rules.getWinLength();
+        this.lines = WinLines.forRules(rules);
+        this.moveOrder = CENTER_FIRST.computeIfAbsent(rules, Position::centerFirstOrder);
+        this.moveRank = MOVE_RANK.computeIfAbsent(rules, r -> ranks(moveOrder));
+        this.cells = new byte[rules.getCellCount()];
+        this.hash = new ZobristHash(rules);
+        this.candidates = new CandidateSet(rules, CandidateSet.radiusFor(rules));
+        this.tracksTernary = cells.length <= MAX_TERNARY_CELLS;
+    }
+    
+    // The player to move owns the first mover's side when both have played equally often
+    public static Position fromBoard(Board board, Player toMove) {
+        Position position = new Position(board.getRules());
+        int own = 0;
+        int other = 0;
+        for (int i = 0; i < board.getRows(); i++) {
+            for (int j = 0; j < board.getCols(); j++) {
+                Player player = board.getPlayerAt(i, j);
+                if (player == toMove) {
+                    own++;
+                } else if (player != null) {
+                    other++;
+                }
+            }
+        }
+        byte ownMark = (byte) (own == other ? 1 : 2);
+        byte otherMark = (byte) (3 - ownMark);
+        for (int i = 0; i < board.getRows(); i++) {
+            for (int j = 0; j < board.getCols(); j++) {
+                Player player = board.getPlayerAt(i, j);
+                if (player != null) {
+                    int index = i * position.cols + j;
+                    position.cells[index] = player == toMove ? ownMark : otherMark;
+                    position.hash.toggle(position.cells[index] - 1, index);
+                    position.candidates.add(index);
+                    if (position.tracksTernary) {
+                        position.ternaryIndex += POWERS_OF_THREE[index] * position.cells[index];
+                    }
+                    position.moveCount++;
+                }
+            }
+        }
+        return position;
+    }
+    
+    private static int[] centerFirstOrder(GameRules rules) {
+        int cols = rules.getCols();
+        double centerRow = (rules.getRows() - 1) / 2.0;
+        double centerCol = (cols - 1) / 2.0;
+        Integer[] order = new Integer[rules.getCellCount()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        java.util.Arrays.sort(order, java.util.Comparator.comparingDouble(
+                index -> Math.abs(index / cols - centerRow) + Math.abs(index % cols - centerCol)));
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+    
+    // Inverse of the move order: where each cell comes in it
+    private static int[] ranks(int[] order) {
+        int[] rank = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            rank[order[i]] = i;
+        }
+        return rank;
+    }
+    
+    public Position copy() {
+        Position position = new Position(rules);
+        System.arraycopy(cells, 0, position.cells, 0, cells.length);
+        position.hash.copyFrom(hash);
+        position.candidates.copyFrom(candidates);
+        position.ternaryIndex = ternaryIndex;
+        position.moveCount = moveCount;
+        return position;
+    }
+    
+    // Overwrites this position with another one on the same rules, without allocating
+    public void copyFrom(Position other) {
+        System.arraycopy(other.cells, 0, cells, 0, cells.length);
+        hash.copyFrom(other.hash);
+        candidates.copyFrom(other.candidates);
+        ternaryIndex = other.ternaryIndex;
+        moveCount = other.moveCount;
+    }
+    
+    public GameRules getRules() {
+        return rules;
+    }
+    
+    public int getCellCount() {
+        return cells.length;
+    }
+    
+    public int getMoveCount() {
+        return moveCount;
+    }
+    
+    // Same keys as Board.getHash(), so a position and the board it came from hash alike
+    public long getHash() {
+        return hash.get();
+    }
+    
+    // One key per symmetry class; see ZobristHash
+    public long getCanonicalHash() {
+        return hash.getCanonical();
+    }
+    
+    // Base-3 encoding (sum of cell * 3^index) used by Tablebase3x3; -1 on boards too big for an int
+    public int getTernaryIndex() {
+        return tracksTernary ? ternaryIndex : -1;
+    }
+    
+    // Maps a move between this position's frame and its canonical frame
+    public int toCanonical(int index) {
+        return hash.getSymmetries().map(hash.getCanonicalSymmetry(), index);
+    }
+    
+    public int fromCanonical(int index) {
+        return hash.getSymmetries().unmap(hash.getCanonicalSymmetry(), index);
+    }
+    
+    // 0 for the first mover, 1 for the second
+    public int getSideToMove() {
+        return moveCount & 1;
+    }
+    
+    public int get(int index) {
+        return cells[index];
+    }
+    
+    public boolean isEmpty(int index) {
+        return cells[index] == 0;
+    }
+    
+    public boolean isFull() {
+        return moveCount == cells.length;
+    }
+    
+    public void make(int index) {
+        int side = getSideToMove();
+        cells[index] = (byte) (side + 1);
+        hash.toggle(side, index);
+        candidates.add(index);
+        if (tracksTernary) {
+            ternaryIndex += POWERS_OF_THREE[index] * (side + 1);
+        }
+        moveCount++;
+    }
+    
+    public void unmake(int index) {
+        hash.toggle(cells[index] - 1, index);
+        if (tracksTernary) {
+            ternaryIndex -= POWERS_OF_THREE[index] * cells[index];
+        }
+        cells[index] = 0;
+        candidates.remove(index);
+        moveCount--;
+    }
+    
+    // Writes the candidate cells, center first, into moves and returns how many
+    // there are. On large boards these are only the cells near a mark.
+    public int generateMoves(int[] moves) {
+        if (!candidates.isRestricted()) {
+            return generateAllMoves(moves);
+        }
+        int count = 0;
+        for (int index = candidates.nextCandidate(0); index >= 0; index = candidates.nextCandidate(index + 1)) {
+            // Insertion sort by move order; candidate lists are a few dozen cells
+            int rank = moveRank[index];
+            int i = count++;
+            while (i > 0 && moveRank[moves[i - 1]] > rank) {
+                moves[i] = moves[i - 1];
+                i--;
+            }
+            moves[i] = index;
+        }
+        return count;
+    }
+    
+    // Every empty cell, center first, regardless of the candidate radius
+    public int generateAllMoves(int[] moves) {
+        int count = 0;
+        for (int index : moveOrder) {
+            if (cells[index] == 0) {
+                moves[count++] = index;
+            }
+        }
+        return count;
+    }
+    
+    // Same run-length detector as ArrayBoard: only runs through the given cell are scanned
+    public boolean isWinAt(int index) {
+        byte mark = cells[index];
+        if (mark == 0) {
+            return false;
+        }
+        int row = index / cols;
+        int col = index % cols;
+        for (int[] direction : DIRECTIONS) {
+            int run = 1
+                    + countRun(row, col, direction[0], direction[1], mark)
+                    + countRun(row, col, -direction[0], -direction[1], mark);
+            if (run >= winLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private int countRun(int row, int col, int dRow, int dCol, byte mark) {
+        int count = 0;
+        int r = row + dRow;
+        int c = col + dCol;
+        while (count < winLength - 1 && r >= 0 && r < rows && c >= 0 && c < cols
+                && cells[r * cols + c] == mark) {
+            count++;
+            r += dRow;
+            c += dCol;
+        }
+        return count;
+    }
+    
+    // Static evaluation from the side to move's point of view: every window
+    // still open to only one side scores by how many marks it already holds
+    public int evaluate() {
+        byte own = (byte) (getSideToMove() + 1);
+        int score = 0;
+        for (int line = 0; line < lines.getLineCount(); line++) {
+            int ownCount = 0;
+            int otherCount = 0;
+            for (int index : lines.getLineCells(line)) {
+                byte mark = cells[index];
+                if (mark == own) {
+                    ownCount++;
+                } else if (mark != 0) {
+                    otherCount++;
+                }
+            }
+            if (otherCount == 0 && ownCount > 0) {
+                score += 1 << (2 * Math.min(ownCount, 8));
+            } else if (ownCount == 0 && otherCount > 0) {
+                score -= 1 << (2 * Math.min(otherCount, 8));
+            }
+        }
+        return score;
+    }
+}
+
+// 21. Strategy interface for computer moves (Strategy pattern)
+interface MoveStrategy {
+    // Returns the chosen cell index (row * cols + col), or -1 when no move is possible
+    int selectMove(Position position);
+    
+    // Strategies that search on a single thread ignore this
+    default void setThreadCount(int threads) {
+    }
+    
+    // Asks a selectMove running on another thread to return as soon as it can
+    default void stop() {
+    }
+}
+
+// 22. Original behaviour: play the first empty cell
+class FirstAvailableStrategy implements MoveStrategy {
+    @Override
+    public int selectMove(Position position) {
+        for (int index = 0; index < position.getCellCount(); index++) {
+            if (position.isEmpty(index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
+
+// 23. Negamax search with alpha-beta pruning
+// Scores are from the side to move's point of view; a win found n plies
+// ahead scores WIN - n so that faster wins are preferred. The search deepens
+// one ply at a time until it reaches the depth limit or runs out of its time
+// or node budget, and always answers with the best move of the last
+// iteration that finished.
+//
+// With more than one thread it runs Lazy SMP: helper threads search the
+// same root at staggered depths and in a different root order, sharing
+// only the lock-free transposition table. They fill the table with results
+// the main thread then picks up; the main thread's answer is the one played.
+class AlphaBetaStrategy implements MoveStrategy {
+    public static final int WIN = 1_000_000_000;
+    static final int MAX_EVAL = WIN / 2;
+    private static final int DEFAULT_MAX_DEPTH = 64;
+    private static final long DEFAULT_TIME_BUDGET_MILLIS = 1000;
+    private static final int DEFAULT_TABLE_BITS = 18;
+    // Positions with this few empty cells are searched to the end (all of 3x3)
+    private static final int SOLVE_EMPTY_CELLS = 9;
+    
+    private int maxDepth;
+    private long timeBudgetMillis;
+    private long nodeLimit;
+    private TranspositionTable table;
+    // Size of the default table, allocated on the first search; 0 once allocated or replaced
+    private int defaultTableBits;
+    private int threads;
+    // Off by default: once the history table orders moves, killers cost more nodes than they save
+    private boolean killerMoves = false;
+    private boolean historyHeuristic = true;
+    private boolean principalVariationSearch = true;
+    
+    private AlphaBetaSearch[] searches;
+    private java.util.concurrent.ExecutorService executor;
+    private volatile java.util.concurrent.atomic.AtomicBoolean activeStop;
+    
+    private long lastNodes;
+    private long lastNanos;
+    
+    public AlphaBetaStrategy() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+    
+    // The 4 MB default table is only allocated once a search runs, so a
+    // strategy that is never reached (e.g. behind the 3x3 tablebase) costs nothing
+    public AlphaBetaStrategy(int maxDepth) {
+        this(maxDepth, null);
+        this.defaultTableBits = DEFAULT_TABLE_BITS;
+    }
+    
+    // Pass a null table to search without one
+    public AlphaBetaStrategy(int maxDepth, TranspositionTable table) {
+        this.maxDepth = maxDepth;
+        this.table = table;
+        this.timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+        this.threads = 1;
+    }
+    
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+    
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+    
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+    
+    // 0 means no time limit
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+    
+    public long getNodeLimit() {
+        return nodeLimit;
+    }
+    
+    // 0 means no node limit; counts the main thread's nodes only
+    public void setNodeLimit(long nodeLimit) {
+        this.nodeLimit = nodeLimit;
+    }
+    
+    // Null before the first search when the default table is used
+    public TranspositionTable getTranspositionTable() {
+        return table;
+    }
+    
+    public void setTranspositionTable(TranspositionTable table) {
+        this.table = table;
+        defaultTableBits = 0;
+        searches = null;
+    }
+    
+    public int getThreadCount() {
+        return threads;
+    }
+    
+    // The move-ordering heuristics and PVS can be switched off to measure what they save
+    public boolean isKillerMoves() {
+        return killerMoves;
+    }
+    
+    public void setKillerMoves(boolean killerMoves) {
+        this.killerMoves = killerMoves;
+        searches = null;
+    }
+    
+    public boolean isHistoryHeuristic() {
+        return historyHeuristic;
+    }
+    
+    public void setHistoryHeuristic(boolean historyHeuristic) {
+        this.historyHeuristic = historyHeuristic;
+        searches = null;
+    }
+    
+    public boolean isPrincipalVariationSearch() {
+        return principalVariationSearch;
+    }
+    
+    public void setPrincipalVariationSearch(boolean principalVariationSearch) {
+        this.principalVariationSearch = principalVariationSearch;
+        searches = null;
+    }
+    
+    // Helper threads only pay off with a shared transposition table
+    @Override
+    public void setThreadCount(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        if (threads != this.threads) {
+            this.threads = threads;
+            shutdown();
+        }
+    }
+    
+    // Stops the helper threads; the strategy starts new ones if it is used again
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        searches = null;
+    }
+    
+    @Override
+    public int selectMove(Position position) {
+        long start = System.nanoTime();
+        long deadline = timeBudgetMillis > 0 ? start + timeBudgetMillis * 1_000_000L : Long.MAX_VALUE;
+        int empty = position.getCellCount() - position.getMoveCount();
+        int targetDepth = empty <= SOLVE_EMPTY_CELLS ? empty : Math.min(maxDepth, empty);
+        prepare();
+        if (table != null) {
+            table.newSearch();
+        }
+        
+        java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        activeStop = stop;
+        java.util.List<java.util.concurrent.Future<?>> helpers = new java.util.ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            AlphaBetaSearch helper = searches[i];
+            Position copy = position.copy();
+            helpers.add(executor.submit(() -> helper.search(copy, targetDepth, Long.MAX_VALUE, 0, stop)));
+        }
+        AlphaBetaSearch main = searches[0];
+        int bestMove = main.search(position, targetDepth, deadline, nodeLimit, stop);
+        stop.set(true);
+        activeStop = null;
+        
+        lastNodes = main.getNodeCount();
+        for (int i = 0; i < helpers.size(); i++) {
+            try {
+                helpers.get(i).get();
+                lastNodes += searches[i + 1].getNodeCount();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (java.util.concurrent.ExecutionException e) {
+                throw new IllegalStateException("Search helper failed", e.getCause());
+            }
+        }
+        lastNanos = System.nanoTime() - start;
+        return bestMove;
+    }
+    
+    // Ends the running search early; it still answers with its last completed depth
+    @Override
+    public void stop() {
+        java.util.concurrent.atomic.AtomicBoolean stop = activeStop;
+        if (stop != null) {
+            stop.set(true);
+        }
+    }
+    
+    private void prepare() {
+        if (defaultTableBits > 0) {
+            table = new TranspositionTable(defaultTableBits);
+            defaultTableBits = 0;
+            searches = null;
+        }
+        if (searches != null) {
+            return;
+        }
+        searches = new AlphaBetaSearch[threads];
+        for (int i = 0; i < threads; i++) {
+            searches[i] = new AlphaBetaSearch(table, i);
+            searches[i].setHeuristics(killerMoves, historyHeuristic, principalVariationSearch);
+        }
+        if (threads > 1 && executor == null) {
+            executor = java.util.concurrent.Executors.newFixedThreadPool(threads - 1, runnable -> {
+                Thread thread = new Thread(runnable, "alpha-beta-helper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    // Best line of the last completed iteration, starting with the move played
+    public int[] getPrincipalVariation() {
+        return searches == null ? new int[0] : searches[0].getPrincipalVariation();
+    }
+    
+    public int getLastCompletedDepth() {
+        return searches == null ? 0 : searches[0].getCompletedDepth();
+    }
+    
+    public int getLastScore() {
+        return searches == null ? 0 : searches[0].getScore();
+    }
+    
+    // Nodes searched by all threads together
+    public long getLastNodeCount() {
+        return lastNodes;
+    }
+    
+    public long getLastSearchNanos() {
+        return lastNanos;
+    }
+    
+    public long getLastNodesPerSecond() {
+        return lastNanos == 0 ? 0 : lastNodes * 1_000_000_000L / lastNanos;
+    }
+}
+
+// 24. Zobrist hash of a position, updated incrementally as marks come and go
+// Keys come from a fixed seed per board size, so every board and search
+// position with the same number of cells shares one key table. Alongside
+// the plain hash it keeps the hash of every symmetric image of the position
+// (8 on square boards, 4 otherwise); the smallest of them is the same for
+// all positions in a symmetry class and serves as the canonical key.
+class ZobristHash {
+    private static final java.util.Map<Integer, long[]> KEYS = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    private final long[] keys;
+    private final int cellCount;
+    private final BoardSymmetry symmetries;
+    private final long[] hashes;
+    
+    public ZobristHash(GameRules rules) {
+        this.cellCount = rules.getCellCount();
+        this.keys = KEYS.computeIfAbsent(cellCount, ZobristHash::generateKeys);
+        this.symmetries = BoardSymmetry.forRules(rules);
+        this.hashes = new long[symmetries.count()];
+    }
+    
+    private static long[] generateKeys(int cellCount) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(0x5DEECE66DL * 31 + cellCount);
+        long[] keys = new long[2 * cellCount];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
+    
+    // XOR is its own inverse, so the same call places and removes a mark
+    public void toggle(int slot, int index) {
+        int base = slot * cellCount;
+        hashes[0] ^= keys[base + index];
+        for (int s = 1; s < hashes.length; s++) {
+            hashes[s] ^= keys[base + symmetries.map(s, index)];
+        }
+    }
+    
+    public long get() {
+        return hashes[0];
+    }
+    
+    public long getCanonical() {
+        return hashes[getCanonicalSymmetry()];
+    }
+    
+    // The symmetry that takes this position to its canonical image
+    public int getCanonicalSymmetry() {
+        int best = 0;
+        for (int s = 1; s < hashes.length; s++) {
+            if (hashes[s] < hashes[best]) {
+                best = s;
+            }
+        }
+        return best;
+    }
+    
+    public BoardSymmetry getSymmetries() {
+        return symmetries;
+    }
+    
+    public void clear() {
+        java.util.Arrays.fill(hashes, 0L);
+    }
+    
+    public void copyFrom(ZobristHash other) {
+        System.arraycopy(other.hashes, 0, hashes, 0, hashes.length);
+    }
+}
+
+// 25. Fixed-size transposition table backed by primitive arrays
+// Each entry packs score (32 bits), move + 1 (16), depth (8), bound flag (2)
+// and search generation (6) into one long next to its 64-bit key.
+//
+// The table is shared by search threads without locks. The key slot holds
+// key XOR entry, so an entry whose two halves were written by different
+// threads fails the check on probe and reads as a miss. This relies on
+// single long array elements being written atomically, as they are on
+// 64-bit JVMs.
+class TranspositionTable {
+    public static final int EXACT = 1;
+    public static final int LOWER_BOUND = 2;
+    public static final int UPPER_BOUND = 3;
+    
+    private final long[] keys;
+    private final long[] entries;
+    private final int mask;
+    private volatile int generation;
+    
+    // Holds 2^bits entries (16 bytes each)
+    public TranspositionTable(int bits) {
+        keys = new long[1 << bits];
+        entries = new long[1 << bits];
+        mask = (1 << bits) - 1;
+    }
+    
+    public void newSearch() {
+        generation = (generation + 1) & 0x3F;
+    }
+    
+    public void clear() {
+        java.util.Arrays.fill(keys, 0L);
+        java.util.Arrays.fill(entries, 0L);
+    }
+    
+    // Returns the packed entry for the key, or 0 when there is none
+    public long probe(long key) {
+        int slot = (int) key & mask;
+        long entry = entries[slot];
+        return (keys[slot] ^ entry) == key ? entry : 0;
+    }
+    
+    // Replacement policy: keep the deeper result unless the slot holds
+    // the same position or an entry left over from an earlier search
+    public void store(long key, int score, int depth, int flag, int move) {
+        int slot = (int) key & mask;
+        int current = generation;
+        long existing = entries[slot];
+        if (existing != 0 && (keys[slot] ^ existing) != key && generation(existing) == current
+                && depth(existing) > depth) {
+            return;
+        }
+        long entry = (score & 0xFFFFFFFFL)
+                | ((long) ((move + 1) & 0xFFFF) << 32)
+                | ((long) Math.min(depth, 0xFF) << 48)
+                | ((long) flag << 56)
+                | ((long) current << 58);
+        entries[slot] = entry;
+        keys[slot] = key ^ entry;
+    }
+    
+    public int capacity() {
+        return keys.length;
+    }
+    
+    // Number of slots in use; a full scan, meant for sizing and diagnostics
+    public int occupancy() {
+        int used = 0;
+        for (long entry : entries) {
+            if (entry != 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+    
+    public static int score(long entry) {
+        return (int) entry;
+    }
+    
+    public static int move(long entry) {
+        return (int) ((entry >>> 32) & 0xFFFF) - 1;
+    }
+    
+    public static int depth(long entry) {
+        return (int) ((entry >>> 48) & 0xFF);
+    }
+    
+    public static int flag(long entry) {
+        return (int) ((entry >>> 56) & 0x3);
+    }
+    
+    private static int generation(long entry) {
+        return (int) (entry >>> 58);
+    }
+}
+
+// 26. Symmetries of the board as cell permutations
+// Square boards have the 8 symmetries of the dihedral group D4, other
+// rectangles the 4 that keep their shape. Symmetry 0 is the identity.
+class BoardSymmetry {
+    private static final java.util.Map<GameRules, BoardSymmetry> CACHE = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    private final int[][] forward;
+    private final int[][] inverse;
+    
+    public static BoardSymmetry forRules(GameRules rules) {
+        return CACHE.computeIfAbsent(rules, BoardSymmetry::new);
+    }
+    
+    private BoardSymmetry(GameRules rules) {
+        int rows = rules.getRows();
+        int cols = rules.getCols();
+        int count = rows == cols ? 8 : 4;
+        forward = new int[count][rules.getCellCount()];
+        inverse = new int[count][rules.getCellCount()];
+        for (int s = 0; s < count; s++) {
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    // Bit 0 flips rows, bit 1 flips columns, bit 2 transposes (square only)
+                    int r = (s & 1) != 0 ? rows - 1 - i : i;
+                    int c = (s & 2) != 0 ? cols - 1 - j : j;
+                    int target = (s & 4) != 0 ? c * cols + r : r * cols + c;
+                    forward[s][i * cols + j] = target;
+                    inverse[s][target] = i * cols + j;
+                }
+            }
+        }
+    }
+    
+    public int count() {
+        return forward.length;
+    }
+    
+    public int map(int symmetry, int index) {
+        return forward[symmetry][index];
+    }
+    
+    public int unmap(int symmetry, int index) {
+        return inverse[symmetry][index];
+    }
+}
+
+// 27. Perfect-play tablebase for classic 3x3 tic-tac-toe
+// One byte per base-3 encoded position (3^9 = 19683 entries): bits 0-3 hold
+// the best move, bits 4-5 the outcome for the side to move. Terminal and
+// unreachable positions are 0. The table is generated once, when the
+// class is first used, by an exhaustive search that prefers the fastest
+// win and the slowest loss.
+class Tablebase3x3 {
+    public static final int WIN = 1;
+    public static final int DRAW = 2;
+    public static final int LOSS = 3;
+    
+    private static final GameRules RULES = new GameRules(3);
+    private static final byte[] TABLE = generate();
+    
+    public static boolean supports(GameRules rules) {
+        return RULES.equals(rules);
+    }
+    
+    public static byte[] table() {
+        return TABLE;
+    }
+    
+    public static int bestMove(byte entry) {
+        return entry == 0 ? -1 : entry & 0x0F;
+    }
+    
+    public static int outcome(byte entry) {
+        return (entry >> 4) & 0x03;
+    }
+    
+    private static byte[] generate() {
+        byte[] table = new byte[19683];
+        byte[] scores = new byte[table.length];
+        solve(new Position(RULES), table, scores, new int[10][9]);
+        return table;
+    }
+    
+    // Returns the score for the side to move: empties left + 1 for a win, negated for a loss
+    private static int solve(Position position, byte[] table, byte[] scores, int[][] moveBuffers) {
+        int index = position.getTernaryIndex();
+        if (table[index] != 0) {
+            return scores[index];
+        }
+        int[] moves = moveBuffers[position.getMoveCount()];
+        int count = position.generateMoves(moves);
+        int best = Integer.MIN_VALUE;
+        int bestMove = -1;
+        for (int i = 0; i < count; i++) {
+            int move = moves[i];
+            int score;
+            position.make(move);
+            if (position.isWinAt(move)) {
+                score = position.getCellCount() - position.getMoveCount() + 1;
+            } else if (position.isFull()) {
+                score = 0;
+            } else {
+                score = -solve(position, table, scores, moveBuffers);
+            }
+            position.unmake(move);
+            if (score > best) {
+                best = score;
+                bestMove = move;
+            }
+        }
+        int outcome = best > 0 ? WIN : best == 0 ? DRAW : LOSS;
+        table[index] = (byte) (bestMove | (outcome << 4));
+        scores[index] = (byte) best;
+        return best;
+    }
+}
+
+// 28. Answers 3x3 positions from the tablebase, delegating everything else
+class TablebaseStrategy implements MoveStrategy {
+    private final byte[] table;
+    private final MoveStrategy fallback;
+    
+    public TablebaseStrategy(MoveStrategy fallback) {
+        // Touching the table here builds it when the player is created, not on its first move
+        this.table = Tablebase3x3.table();
+        this.fallback = fallback;
+    }
+    
+    public MoveStrategy getFallback() {
+        return fallback;
+    }
+    
+    @Override
+    public void setThreadCount(int threads) {
+        fallback.setThreadCount(threads);
+    }
+    
+    @Override
+    public void stop() {
+        fallback.stop();
+    }
+    
+    @Override
+    public int selectMove(Position position) {
+        if (Tablebase3x3.supports(position.getRules())) {
+            int move = Tablebase3x3.bestMove(table[position.getTernaryIndex()]);
+            if (move >= 0) {
+                return move;
+            }
+        }
+        return fallback.selectMove(position);
+    }
+}
+
+// 29. Node pool for Monte Carlo tree search
+// Nodes live in parallel primitive arrays indexed by node number; the
+// children of a node are allocated together and stored contiguously, so
+// the tree never creates an object per node. Values are kept in half
+// points (win 2, draw 1, loss 0) for the player who moved into the node.
+//
+// The tree can be shared by several threads without locks: visits, values
+// and node states are atomic arrays, children are claimed with a single
+// getAndAdd, and a node is expanded by whichever thread wins a CAS on its
+// state. Writes to move/firstChild/childCount happen before the volatile
+// state write that publishes them.
+class MctsTree {
+    private final int[] move;
+    private final int[] firstChild;
+    private final int[] childCount;
+    private final java.util.concurrent.atomic.AtomicIntegerArray visits;
+    private final java.util.concurrent.atomic.AtomicLongArray value;
+    private final java.util.concurrent.atomic.AtomicIntegerArray state;
+    private final java.util.concurrent.atomic.AtomicInteger size;
+    
+    // Node states: not yet visited, being expanded, expanded, or ended by the move into it
+    static final int UNEXPANDED = 0;
+    static final int EXPANDING = 1;
+    static final int EXPANDED = 2;
+    static final int WON = 3;
+    static final int DRAWN = 4;
+    
+    public MctsTree(int capacity) {
+        move = new int[capacity];
+        firstChild = new int[capacity];
+        childCount = new int[capacity];
+        visits = new java.util.concurrent.atomic.AtomicIntegerArray(capacity);
+        value = new java.util.concurrent.atomic.AtomicLongArray(capacity);
+        state = new java.util.concurrent.atomic.AtomicIntegerArray(capacity);
+        size = new java.util.concurrent.atomic.AtomicInteger();
+    }
+    
+    // Drops every node and starts over with just the root; not thread-safe
+    public void reset() {
+        move[0] = -1;
+        childCount[0] = 0;
+        visits.set(0, 0);
+        value.set(0, 0);
+        state.set(0, UNEXPANDED);
+        size.set(1);
+    }
+    
+    // Allocates count children for the node; returns false when the pool is
+    // full or another thread is already expanding it
+    public boolean expand(int node, int[] moves, int count) {
+        if (!state.compareAndSet(node, UNEXPANDED, EXPANDING)) {
+            return false;
+        }
+        // Reserve the children only if they fit, so size never passes capacity
+        int first;
+        do {
+            first = size.get();
+            if (first + count > move.length) {
+                state.set(node, UNEXPANDED);
+                return false;
+            }
+        } while (!size.compareAndSet(first, first + count));
+        for (int i = 0; i < count; i++) {
+            int child = first + i;
+            move[child] = moves[i];
+            childCount[child] = 0;
+            visits.set(child, 0);
+            value.set(child, 0);
+            state.set(child, UNEXPANDED);
+        }
+        firstChild[node] = first;
+        childCount[node] = count;
+        state.set(node, EXPANDED);
+        return true;
+    }
+    
+    // Marks a node as the end of the game; only the first thread to see it does so
+    public void markTerminal(int node, int terminalState) {
+        state.compareAndSet(node, UNEXPANDED, terminalState);
+    }
+    
+    // UCT: mean value plus an exploration bonus; unvisited children come first
+    public int selectChild(int node, double exploration) {
+        int first = firstChild[node];
+        int count = childCount[node];
+        double logParent = Math.log(Math.max(1, visits.get(node)));
+        int best = first;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int child = first; child < first + count; child++) {
+            int n = visits.get(child);
+            if (n == 0) {
+                return child;
+            }
+            double score = value.get(child) / (2.0 * n) + exploration * Math.sqrt(logParent / n);
+            if (score > bestScore) {
+                bestScore = score;
+                best = child;
+            }
+        }
+        return best;
+    }
+    
+    // Virtual loss: a visit is counted as soon as a thread passes through the
+    // node, with no value, so other threads are steered elsewhere until the
+    // playout result arrives
+    public void addVisit(int node) {
+        visits.incrementAndGet(node);
+    }
+    
+    public void addValue(int node, int halfPoints) {
+        value.addAndGet(node, halfPoints);
+    }
+    
+    public int mostVisitedChild(int node) {
+        int first = firstChild[node];
+        int best = -1;
+        for (int child = first; child < first + childCount[node]; child++) {
+            if (best < 0 || visits.get(child) > visits.get(best)) {
+                best = child;
+            }
+        }
+        return best;
+    }
+    
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+    
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+    
+    public int getMove(int node) {
+        return move[node];
+    }
+    
+    public int getVisits(int node) {
+        return visits.get(node);
+    }
+    
+    public int getState(int node) {
+        return state.get(node);
+    }
+    
+    public int size() {
+        return size.get();
+    }
+    
+    public int capacity() {
+        return move.length;
+    }
+}
+
+// 30. Monte Carlo tree search (UCT) for large boards
+// Each iteration walks the tree with UCT, expands one node, finishes the
+// game with uniformly random moves and backs the result up the path.
+// With more than one thread it runs either root-parallel (every thread
+// grows its own tree and the root visit counts are summed) or
+// tree-parallel (all threads share one tree, kept apart by virtual loss).
+class MctsStrategy implements MoveStrategy {
+    public enum Mode {
+        ROOT_PARALLEL, TREE_PARALLEL
+    }
+    
+    private static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final long DEFAULT_TIME_BUDGET_MILLIS = 1000;
+    private static final double DEFAULT_EXPLORATION = 1.4;
+    
+    private final int nodeCapacity;
+    private long timeBudgetMillis;
+    private long iterationLimit;
+    private double exploration;
+    private int threads;
+    private Mode mode;
+    
+    private MctsTree[] trees;
+    private MctsWorker[] workers;
+    private java.util.concurrent.ExecutorService executor;
+    private volatile java.util.concurrent.atomic.AtomicBoolean activeStop;
+    
+    private long lastPlayouts;
+    private long lastNanos;
+    
+    public MctsStrategy() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    public MctsStrategy(int nodeCapacity) {
+        this.nodeCapacity = nodeCapacity;
+        this.timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+        this.exploration = DEFAULT_EXPLORATION;
+        this.threads = 1;
+        this.mode = Mode.TREE_PARALLEL;
+    }
+    
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+    
+    // 0 means no time limit
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+    
+    public long getIterationLimit() {
+        return iterationLimit;
+    }
+    
+    // 0 means no iteration limit; with several threads the limit is shared between them
+    public void setIterationLimit(long iterationLimit) {
+        this.iterationLimit = iterationLimit;
+    }
+    
+    public double getExploration() {
+        return exploration;
+    }
+    
+    public void setExploration(double exploration) {
+        this.exploration = exploration;
+    }
+    
+    public int getThreadCount() {
+        return threads;
+    }
+    
+    @Override
+    public void setThreadCount(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        if (threads != this.threads) {
+            this.threads = threads;
+            shutdown();
+        }
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    public void setMode(Mode mode) {
+        if (mode != this.mode) {
+            this.mode = mode;
+            trees = null;
+        }
+    }
+    
+    // Stops the helper threads; the strategy starts new ones if it is used again
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        trees = null;
+        workers = null;
+    }
+    
+    @Override
+    public int selectMove(Position position) {
+        if (timeBudgetMillis <= 0 && iterationLimit <= 0) {
+            throw new IllegalStateException("MCTS needs a time budget or an iteration limit");
+        }
+        long start = System.nanoTime();
+        long deadline = timeBudgetMillis > 0 ? start + timeBudgetMillis * 1_000_000L : Long.MAX_VALUE;
+        prepare(position.getRules());
+        for (MctsTree tree : trees) {
+            tree.reset();
+        }
+        long perWorkerLimit = iterationLimit <= 0 ? 0 : Math.max(1, iterationLimit / threads);
+        
+        // The calling thread runs worker 0; helpers run the rest
+        java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        activeStop = stop;
+        java.util.List<java.util.concurrent.Future<?>> helpers = new java.util.ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            MctsWorker worker = workers[i];
+            helpers.add(executor.submit(() -> worker.search(position, deadline, perWorkerLimit, stop)));
+        }
+        workers[0].search(position, deadline, perWorkerLimit, stop);
+        for (java.util.concurrent.Future<?> helper : helpers) {
+            try {
+                helper.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (java.util.concurrent.ExecutionException e) {
+                throw new IllegalStateException("MCTS worker failed", e.getCause());
+            }
+        }
+        
+        activeStop = null;
+        lastPlayouts = 0;
+        for (MctsWorker worker : workers) {
+            lastPlayouts += worker.getPlayouts();
+        }
+        int move = trees.length == 1 ? bestMove(trees[0]) : mergedBestMove(position.getCellCount());
+        lastNanos = System.nanoTime() - start;
+        return move;
+    }
+    
+    // Ends the running search early; it answers with the tree grown so far
+    @Override
+    public void stop() {
+        java.util.concurrent.atomic.AtomicBoolean stop = activeStop;
+        if (stop != null) {
+            stop.set(true);
+        }
+    }
+    
+    private void prepare(GameRules rules) {
+        if (trees != null && workers[0].supports(rules)) {
+            return;
+        }
+        int treeCount = mode == Mode.ROOT_PARALLEL ? threads : 1;
+        trees = new MctsTree[treeCount];
+        for (int i = 0; i < treeCount; i++) {
+            trees[i] = new MctsTree(nodeCapacity / treeCount);
+        }
+        workers = new MctsWorker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new MctsWorker(trees[i % treeCount], rules, exploration);
+        }
+        if (threads > 1 && executor == null) {
+            executor = java.util.concurrent.Executors.newFixedThreadPool(threads - 1, runnable -> {
+                Thread thread = new Thread(runnable, "mcts-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    private static int bestMove(MctsTree tree) {
+        int best = tree.mostVisitedChild(0);
+        return best < 0 ? -1 : tree.getMove(best);
+    }
+    
+    // Root-parallel: sum every tree's root visit counts per move
+    private int mergedBestMove(int cellCount) {
+        long[] totals = new long[cellCount];
+        for (MctsTree tree : trees) {
+            int first = tree.getFirstChild(0);
+            for (int child = first; child < first + tree.getChildCount(0); child++) {
+                totals[tree.getMove(child)] += tree.getVisits(child);
+            }
+        }
+        int best = -1;
+        for (int move = 0; move < cellCount; move++) {
+            if (totals[move] > 0 && (best < 0 || totals[move] > totals[best])) {
+                best = move;
+            }
+        }
+        return best;
+    }
+    
+    public long getLastPlayoutCount() {
+        return lastPlayouts;
+    }
+    
+    public long getLastSearchNanos() {
+        return lastNanos;
+    }
+    
+    public long getLastPlayoutsPerSecond() {
+        return lastNanos == 0 ? 0 : lastPlayouts * 1_000_000_000L / lastNanos;
+    }
+}
+
+// 31. One MCTS search thread: its own scratch position, buffers and random source
+class MctsWorker {
+    private final MctsTree tree;
+    private final GameRules rules;
+    private final double exploration;
+    private final Position scratch;
+    private final int[] path;
+    private final int[] moves;
+    private final java.util.SplittableRandom random;
+    private long playouts;
+    
+    public MctsWorker(MctsTree tree, GameRules rules, double exploration) {
+        this.tree = tree;
+        this.rules = rules;
+        this.exploration = exploration;
+        this.scratch = new Position(rules);
+        this.path = new int[rules.getCellCount() + 1];
+        this.moves = new int[rules.getCellCount()];
+        this.random = new java.util.SplittableRandom();
+    }
+    
+    public boolean supports(GameRules other) {
+        return rules.equals(other);
+    }
+    
+    public long getPlayouts() {
+        return playouts;
+    }
+    
+    public void search(Position root, long deadline, long iterationLimit,
+            java.util.concurrent.atomic.AtomicBoolean stop) {
+        playouts = 0;
+        do {
+            scratch.copyFrom(root);
+            runIteration();
+            playouts++;
+        } while ((iterationLimit <= 0 || playouts < iterationLimit)
+                && ((playouts & 63) != 0 || (System.nanoTime() < deadline && !stop.get()))
+                && !Thread.currentThread().isInterrupted());
+    }
+    
+    private void runIteration() {
+        // Selection: descend through expanded nodes, adding a virtual loss on the way
+        int node = 0;
+        int depth = 0;
+        tree.addVisit(node);
+        path[depth++] = node;
+        while (tree.getState(node) == MctsTree.EXPANDED) {
+            node = tree.selectChild(node, exploration);
+            tree.addVisit(node);
+            scratch.make(tree.getMove(node));
+            path[depth++] = node;
+        }
+        
+        // Expansion: a node's first visit decides whether the game ended there
+        int moverResult;
+        if (tree.getState(node) == MctsTree.UNEXPANDED && node != 0) {
+            if (scratch.isWinAt(tree.getMove(node))) {
+                tree.markTerminal(node, MctsTree.WON);
+            } else if (scratch.isFull()) {
+                tree.markTerminal(node, MctsTree.DRAWN);
+            }
+        }
+        int state = tree.getState(node);
+        if (state == MctsTree.WON) {
+            moverResult = 2;
+        } else if (state == MctsTree.DRAWN) {
+            moverResult = 1;
+        } else {
+            int count = scratch.generateMoves(moves);
+            if (tree.expand(node, moves, count)) {
+                node = tree.selectChild(node, exploration);
+                tree.addVisit(node);
+                scratch.make(tree.getMove(node));
+                path[depth++] = node;
+                if (scratch.isWinAt(tree.getMove(node))) {
+                    tree.markTerminal(node, MctsTree.WON);
+                    moverResult = 2;
+                } else if (scratch.isFull()) {
+                    tree.markTerminal(node, MctsTree.DRAWN);
+                    moverResult = 1;
+                } else {
+                    moverResult = 2 - playout();
+                }
+            } else {
+                // Pool full or another thread is expanding this node: just play it out
+                moverResult = 2 - playout();
+            }
+        }
+        
+        // Backpropagation: the result flips perspective at every ply
+        for (int i = depth - 1; i >= 0; i--) {
+            tree.addValue(path[i], moverResult);
+            moverResult = 2 - moverResult;
+        }
+    }
+    
+    // Plays random moves to the end; returns half points for the side to move at the start
+    private int playout() {
+        int startSide = scratch.getSideToMove();
+        // Playouts fill the whole board; only tree moves are limited to candidates
+        int count = scratch.generateAllMoves(moves);
+        while (count > 0) {
+            int pick = random.nextInt(count);
+            int move = moves[pick];
+            moves[pick] = moves[--count];
+            scratch.make(move);
+            if (scratch.isWinAt(move)) {
+                return scratch.getSideToMove() != startSide ? 2 : 0;
+            }
+        }
+        return 1;
+    }
+}
+
+// 32. Scaling benchmark for parallel MCTS: playouts per second at 1, 2, 4 and 8 threads
+// Run with: java MctsScalingBenchmark [rows cols winLength] [millis]
+class MctsScalingBenchmark {
+    public static void main(String[] args) {
+        GameRules rules = args.length >= 3
+                ? new GameRules(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                : new GameRules(15, 15, 5);
+        long millis = args.length >= 4 ? Long.parseLong(args[3]) : 2000;
+        System.out.println("MCTS scaling on " + rules + ", " + millis + " ms per run, "
+                + Runtime.getRuntime().availableProcessors() + " cores available");
+        
+        // Warm up the JIT so the single-thread baseline is not penalised
+        MctsStrategy warmUp = new MctsStrategy();
+        warmUp.setTimeBudgetMillis(millis);
+        warmUp.selectMove(new Position(rules));
+        
+        for (MctsStrategy.Mode mode : MctsStrategy.Mode.values()) {
+            long baseline = 0;
+            for (int threads : new int[] {1, 2, 4, 8}) {
+                MctsStrategy strategy = new MctsStrategy();
+                strategy.setMode(mode);
+                strategy.setThreadCount(threads);
+                strategy.setTimeBudgetMillis(millis);
+                strategy.selectMove(new Position(rules));
+                long rate = strategy.getLastPlayoutsPerSecond();
+                if (threads == 1) {
+                    baseline = rate;
+                }
+                System.out.printf("%-13s %d threads: %,10d playouts/s  (x%.2f)%n",
+                        mode, threads, rate, baseline == 0 ? 0.0 : (double) rate / baseline);
+                strategy.shutdown();
+            }
+        }
+    }
+}
+
+// 33. One alpha-beta search thread: iterative deepening over its own buffers
+// Helper threads (index > 0) start one ply deeper on odd indices and rotate
+// the root move order, so that they explore different parts of the tree.
+//
+// Moves are tried in this order: the previous principal variation, the
+// table move, the two killer moves of the ply (quiet moves that caused a
+// cutoff in a sibling), then the rest by history score (cutoffs caused by
+// that cell anywhere in the tree, weighted by depth squared). After the
+// first move, the others get a null-window search and are re-searched with
+// the full window only if they beat alpha (principal variation search).
+class AlphaBetaSearch {
+    private static final int WIN = AlphaBetaStrategy.WIN;
+    private static final int MAX_EVAL = AlphaBetaStrategy.MAX_EVAL;
+    // How often (in nodes) the clock and stop flag are read
+    private static final int CHECK_INTERVAL = 64;
+    
+    private final TranspositionTable table;
+    private final int helperIndex;
+    private boolean useKillers = true;
+    private boolean useHistory = true;
+    private boolean usePvs = true;
+    
+    private int[][] moveBuffers;
+    private int[][] killers;
+    private int[] history;
+    private int[][] pvTable;
+    private int[] pvLength;
+    private int[] previousPv;
+    private int previousPvLength;
+    private boolean followPv;
+    
+    private long deadline;
+    private long nodeLimit;
+    private java.util.concurrent.atomic.AtomicBoolean stop;
+    private boolean aborted;
+    
+    private long nodes;
+    private int completedDepth;
+    private int score;
+    
+    public AlphaBetaSearch(TranspositionTable table, int helperIndex) {
+        this.table = table;
+        this.helperIndex = helperIndex;
+    }
+    
+    public void setHeuristics(boolean killers, boolean history, boolean pvs) {
+        this.useKillers = killers;
+        this.useHistory = history;
+        this.usePvs = pvs;
+    }
+    
+    public int search(Position position, int targetDepth, long deadline, long nodeLimit,
+            java.util.concurrent.atomic.AtomicBoolean stop) {
+        this.deadline = deadline;
+        this.nodeLimit = nodeLimit;
+        this.stop = stop;
+        aborted = false;
+        nodes = 0;
+        completedDepth = 0;
+        score = 0;
+        allocateBuffers(position.getCellCount(), targetDepth);
+        for (int[] slots : killers) {
+            slots[0] = -1;
+            slots[1] = -1;
+        }
+        // Older history still helps, but the current search should dominate
+        for (int i = 0; i < history.length; i++) {
+            history[i] >>= 1;
+        }
+        
+        int bestMove = -1;
+        previousPvLength = 0;
+        int firstDepth = 1 + (helperIndex & 1);
+        for (int depth = Math.min(firstDepth, targetDepth); depth <= targetDepth; depth++) {
+            followPv = true;
+            int result = negamax(position, depth, -WIN - 1, WIN + 1, 0);
+            if (aborted) {
+                break;
+            }
+            completedDepth = depth;
+            score = result;
+            previousPvLength = pvLength[0];
+            System.arraycopy(pvTable[0], 0, previousPv, 0, previousPvLength);
+            bestMove = previousPvLength > 0 ? previousPv[0] : -1;
+            // A forced result cannot change with more depth
+            if (Math.abs(result) > MAX_EVAL) {
+                break;
+            }
+        }
+        if (bestMove < 0 && !position.isFull()) {
+            // Not even depth 1 finished: fall back to the first ordered move
+            position.generateMoves(moveBuffers[0]);
+            bestMove = moveBuffers[0][0];
+        }
+        return bestMove;
+    }
+    
+    private void allocateBuffers(int cellCount, int targetDepth) {
+        int plies = Math.max(targetDepth, 1) + 1;
+        if (moveBuffers == null || moveBuffers.length < plies || moveBuffers[0].length != cellCount) {
+            moveBuffers = new int[plies][cellCount];
+            killers = new int[plies][2];
+            pvTable = new int[plies][plies];
+            pvLength = new int[plies];
+            previousPv = new int[plies];
+        }
+        if (history == null || history.length != cellCount) {
+            history = new int[cellCount];
+        }
+    }
+    
+    // Plays the move, scores it for the side that made it, and takes it back
+    private int scoreMove(Position position, int move, int depth, int alpha, int beta, int ply) {
+        int result;
+        position.make(move);
+        if (position.isWinAt(move)) {
+            result = WIN - (ply + 1);
+            pvLength[ply + 1] = ply + 1;
+        } else if (position.isFull()) {
+            result = 0;
+            pvLength[ply + 1] = ply + 1;
+        } else if (depth <= 1) {
+            result = -Math.max(-MAX_EVAL, Math.min(MAX_EVAL, position.evaluate()));
+            pvLength[ply + 1] = ply + 1;
+        } else {
+            result = -negamax(position, depth - 1, -beta, -alpha, ply + 1);
+        }
+        position.unmake(move);
+        return result;
+    }
+    
+    // Nodes are counted here, one per interior position expanded
+    private int negamax(Position position, int depth, int alpha, int beta, int ply) {
+        nodes++;
+        pvLength[ply] = ply;
+        if ((nodes & (CHECK_INTERVAL - 1)) == 0 && outOfBudget()) {
+            aborted = true;
+            return 0;
+        }
+        
+        int originalAlpha = alpha;
+        int tableMove = -1;
+        if (table != null) {
+            long entry = table.probe(position.getCanonicalHash());
+            if (entry != 0) {
+                tableMove = fromTableMove(position, entry);
+                // The root always searches, so that it yields a principal variation
+                if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                    int tableScore = fromTable(TranspositionTable.score(entry), ply);
+                    int flag = TranspositionTable.flag(entry);
+                    if (flag == TranspositionTable.EXACT) {
+                        return tableScore;
+                    } else if (flag == TranspositionTable.LOWER_BOUND) {
+                        alpha = Math.max(alpha, tableScore);
+                    } else {
+                        beta = Math.min(beta, tableScore);
+                    }
+                    if (alpha >= beta) {
+                        return tableScore;
+                    }
+                }
+            }
+        }
+        
+        // Previous iteration's principal variation first, then the table's best move
+        int pvMove = followPv && ply < previousPvLength ? previousPv[ply] : -1;
+        int[] moves = moveBuffers[ply];
+        int count = position.generateMoves(moves);
+        if (useHistory) {
+            sortByHistory(moves, count);
+        }
+        if (ply == 0 && helperIndex > 0 && count > 1) {
+            rotate(moves, count, helperIndex % count);
+        }
+        if (useKillers) {
+            promote(moves, count, killers[ply][1]);
+            promote(moves, count, killers[ply][0]);
+        }
+        promote(moves, count, tableMove);
+        promote(moves, count, pvMove);
+        if (pvMove < 0 || moves[0] != pvMove) {
+            followPv = false;
+        }
+        
+        int best = -WIN - 1;
+        int bestMove = -1;
+        for (int i = 0; i < count; i++) {
+            int result;
+            if (usePvs && i > 0 && beta - alpha > 1) {
+                // Try to prove the move is no better than alpha with a null window
+                result = scoreMove(position, moves[i], depth, alpha, alpha + 1, ply);
+                if (!aborted && result > alpha && result < beta) {
+                    result = scoreMove(position, moves[i], depth, alpha, beta, ply);
+                }
+            } else {
+                result = scoreMove(position, moves[i], depth, alpha, beta, ply);
+            }
+            followPv = false;
+            if (aborted) {
+                return 0;
+            }
+            if (result > best) {
+                best = result;
+                bestMove = moves[i];
+                if (result > alpha) {
+                    alpha = result;
+                    updatePv(ply, moves[i]);
+                    if (alpha >= beta) {
+                        recordCutoff(moves[i], depth, ply, tableMove);
+                        break;
+                    }
+                }
+            }
+        }
+        
+        if (table != null) {
+            int flag = best <= originalAlpha ? TranspositionTable.UPPER_BOUND
+                    : best >= beta ? TranspositionTable.LOWER_BOUND : TranspositionTable.EXACT;
+            table.store(position.getCanonicalHash(), toTable(best, ply), depth, flag,
+                    bestMove < 0 ? -1 : position.toCanonical(bestMove));
+        }
+        return best;
+    }
+    
+    private boolean outOfBudget() {
+        return stop.get() || (nodeLimit > 0 && nodes >= nodeLimit) || System.nanoTime() >= deadline;
+    }
+    
+    // Triangular PV table: row ply holds the best line found from that ply on
+    private void updatePv(int ply, int move) {
+        pvTable[ply][ply] = move;
+        int childLength = pvLength[ply + 1];
+        for (int i = ply + 1; i < childLength; i++) {
+            pvTable[ply][i] = pvTable[ply + 1][i];
+        }
+        pvLength[ply] = Math.max(childLength, ply + 1);
+    }
+    
+    private void recordCutoff(int move, int depth, int ply, int tableMove) {
+        if (useKillers && move != tableMove && move != killers[ply][0]) {
+            killers[ply][1] = killers[ply][0];
+            killers[ply][0] = move;
+        }
+        if (useHistory) {
+            history[move] = Math.min(history[move] + depth * depth, Integer.MAX_VALUE >> 1);
+        }
+    }
+    
+    // Stable insertion sort by descending history, so ties keep the center-first order
+    private void sortByHistory(int[] moves, int count) {
+        for (int i = 1; i < count; i++) {
+            int move = moves[i];
+            int score = history[move];
+            int j = i;
+            while (j > 0 && history[moves[j - 1]] < score) {
+                moves[j] = moves[j - 1];
+                j--;
+            }
+            moves[j] = move;
+        }
+    }
+    
+    // Moves the given move (if present) to the front, keeping the rest in order
+    private static void promote(int[] moves, int count, int move) {
+        if (move < 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (moves[i] == move) {
+                System.arraycopy(moves, 0, moves, 1, i);
+                moves[0] = move;
+                return;
+            }
+        }
+    }
+    
+    private static void rotate(int[] moves, int count, int by) {
+        int[] head = java.util.Arrays.copyOf(moves, by);
+        System.arraycopy(moves, by, moves, 0, count - by);
+        System.arraycopy(head, 0, moves, count - by, by);
+    }
+    
+    // The table is keyed by symmetry class, so moves are stored in the canonical frame
+    private static int fromTableMove(Position position, long entry) {
+        int move = TranspositionTable.move(entry);
+        return move < 0 ? -1 : position.fromCanonical(move);
+    }
+    
+    // Win scores are stored relative to the node, not the root, so they stay
+    // valid when the same position is reached at a different ply
+    private static int toTable(int value, int ply) {
+        if (value > MAX_EVAL) {
+            return value + ply;
+        }
+        return value < -MAX_EVAL ? value - ply : value;
+    }
+    
+    private static int fromTable(int value, int ply) {
+        if (value > MAX_EVAL) {
+            return value - ply;
+        }
+        return value < -MAX_EVAL ? value + ply : value;
+    }
+    
+    public int[] getPrincipalVariation() {
+        return java.util.Arrays.copyOf(previousPv, previousPvLength);
+    }
+    
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+    
+    public int getScore() {
+        return score;
+    }
+    
+    public long getNodeCount() {
+        return nodes;
+    }
+}
+
+// 34. Scaling benchmark for Lazy SMP: time to finish a fixed-depth search at 1, 2, 4 and 8 threads
+// Run with: java AlphaBetaScalingBenchmark [rows cols winLength] [depth]
+class AlphaBetaScalingBenchmark {
+    public static void main(String[] args) {
+        GameRules rules = args.length >= 3
+                ? new GameRules(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                : new GameRules(4);
+        int depth = args.length >= 4 ? Integer.parseInt(args[3]) : rules.getCellCount();
+        System.out.println("Lazy SMP on " + rules + " to depth " + depth + ", "
+                + Runtime.getRuntime().availableProcessors() + " cores available");
+        
+        // Warm up the JIT so the single-thread baseline is not penalised
+        AlphaBetaStrategy warmUp = new AlphaBetaStrategy(depth, new TranspositionTable(22));
+        warmUp.setTimeBudgetMillis(0);
+        warmUp.selectMove(new Position(rules));
+        
+        long baseline = 0;
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            // A fresh table per run, so no run profits from an earlier one
+            AlphaBetaStrategy strategy = new AlphaBetaStrategy(depth, new TranspositionTable(22));
+            strategy.setThreadCount(threads);
+            strategy.setTimeBudgetMillis(0);
+            int move = strategy.selectMove(new Position(rules));
+            long millis = strategy.getLastSearchNanos() / 1_000_000;
+            if (threads == 1) {
+                baseline = millis;
+            }
+            System.out.printf("%d threads: %,6d ms  %,12d nodes  move %d score %d  (x%.2f)%n",
+                    threads, millis, strategy.getLastNodeCount(), move, strategy.getLastScore(),
+                    millis == 0 ? 0.0 : (double) baseline / millis);
+            strategy.shutdown();
+        }
+    }
+}
+
+// 35. Background search on the opponent's time for ComputerPlayer
+// After the computer moves, a single daemon thread first predicts the
+// opponent's reply with the player's own strategy, then searches the
+// position after that reply. If the opponent plays the predicted move the
+// ponder search is promoted and its answer used; otherwise it is stopped.
+// Either way the strategy's transposition table keeps what it learned.
+// Game events only flag a search to stop, since they arrive under the
+// controller's lock; waiting for it is left to takeResult() and cancel(),
+// which run before the strategy is used again.
+class Ponderer {
+    private final java.util.concurrent.ExecutorService executor;
+    private MoveStrategy strategy;
+    private java.util.concurrent.Future<Integer> task;
+    // Each ponder search has its own flag, so a new one never revives an old one
+    private java.util.concurrent.atomic.AtomicBoolean taskCancelled;
+    private volatile int predictedReply;
+    private volatile long ponderedHash;
+    private boolean promoted;
+    
+    public Ponderer() {
+        executor = java.util.concurrent.Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ponder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    // Starts pondering from the position after our own move (opponent to move);
+    // the single ponder thread runs it only after any search still stopping
+    public synchronized void start(MoveStrategy strategy, Position afterOwnMove) {
+        requestStop();
+        Position position = afterOwnMove.copy();
+        java.util.concurrent.atomic.AtomicBoolean cancelled = new java.util.concurrent.atomic.AtomicBoolean();
+        this.strategy = strategy;
+        taskCancelled = cancelled;
+        predictedReply = -1;
+        promoted = false;
+        task = executor.submit(() -> ponder(strategy, position, cancelled));
+    }
+    
+    private int ponder(MoveStrategy strategy, Position position, java.util.concurrent.atomic.AtomicBoolean cancelled) {
+        if (cancelled.get()) {
+            return -1;
+        }
+        int reply = strategy.selectMove(position.copy());
+        if (reply < 0) {
+            return -1;
+        }
+        position.make(reply);
+        if (position.isWinAt(reply) || position.isFull()) {
+            return -1;
+        }
+        synchronized (this) {
+            if (cancelled.get()) {
+                return -1;
+            }
+            ponderedHash = position.getHash();
+            predictedReply = reply;
+        }
+        return cancelled.get() ? -1 : strategy.selectMove(position);
+    }
+    
+    // The real move arrived: keep the search if it was predicted, stop it otherwise
+    public synchronized void opponentMoved(int move) {
+        if (task == null) {
+            return;
+        }
+        if (!promoted && predictedReply == move) {
+            promoted = true;
+        } else {
+            requestStop();
+        }
+    }
+    
+    // Flags the ponder search to stop without waiting for it
+    public synchronized void requestStop() {
+        if (task == null || taskCancelled.get()) {
+            return;
+        }
+        taskCancelled.set(true);
+        promoted = false;
+        strategy.stop();
+    }
+    
+    // The pondered answer for this position, waiting for the search to finish if
+    // needed; -1 (after stopping any ponder search) when there is none
+    public int takeResult(Position position) {
+        java.util.concurrent.Future<Integer> pending;
+        MoveStrategy stopping = null;
+        boolean usable;
+        synchronized (this) {
+            pending = task;
+            if (pending == null) {
+                return -1;
+            }
+            usable = promoted && !taskCancelled.get() && ponderedHash == position.getHash();
+            if (!usable) {
+                requestStop();
+                stopping = strategy;
+            }
+        }
+        int move = await(pending, stopping);
+        clear(pending);
+        return usable && move >= 0 && position.isEmpty(move) ? move : -1;
+    }
+    
+    // Stops the ponder search and waits for it, so the strategy is free for the caller
+    public void cancel() {
+        java.util.concurrent.Future<Integer> pending;
+        MoveStrategy stopping;
+        synchronized (this) {
+            pending = task;
+            if (pending == null) {
+                return;
+            }
+            requestStop();
+            stopping = strategy;
+        }
+        await(pending, stopping);
+        clear(pending);
+    }
+    
+    // Waits for the search even if interrupted: giving up early would let the
+    // caller use the strategy while the ponder thread still searches with it
+    private static int await(java.util.concurrent.Future<Integer> pending, MoveStrategy stopping) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                // A search may start between phases after a stop, so keep stopping until done
+                if (stopping != null) {
+                    stopping.stop();
+                }
+                try {
+                    Integer move = pending.get(10, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    return move == null ? -1 : move;
+                } catch (java.util.concurrent.TimeoutException e) {
+                    // Not done yet
+                } catch (java.util.concurrent.ExecutionException e) {
+                    return -1;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private synchronized void clear(java.util.concurrent.Future<Integer> finished) {
+        if (task == finished) {
+            task = null;
+            promoted = false;
+        }
+    }
+    
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+}
+
+// 36. Opening book stored as a sorted binary file and read through a memory mapping
+// Layout (big-endian): magic, version, rows, cols, winLength, entry count,
+// then entries of (canonical position hash, canonical move) sorted by hash.
+// The file is mapped, never parsed; a lookup is a binary search that only
+// touches the pages it reads.
+class OpeningBook {
+    static final int MAGIC = 0x54544F42; // "TTOB"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+    static final int ENTRY_BYTES = 10;
+    
+    private final GameRules rules;
+    private final java.nio.MappedByteBuffer buffer;
+    private final int count;
+    
+    private OpeningBook(GameRules rules, java.nio.MappedByteBuffer buffer, int count) {
+        this.rules = rules;
+        this.buffer = buffer;
+        this.count = count;
+    }
+    
+    public static OpeningBook open(java.io.File file) throws PersistenceException {
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(
+                file.toPath(), java.nio.file.StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new PersistenceException("Not an opening book: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            java.nio.MappedByteBuffer buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new PersistenceException("Not an opening book: " + file);
+            }
+            GameRules rules = new GameRules(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16));
+            int count = buffer.getInt(20);
+            if (count < 0 || size != HEADER_BYTES + (long) count * ENTRY_BYTES) {
+                throw new PersistenceException("Truncated opening book: " + file);
+            }
+            return new OpeningBook(rules, buffer, count);
+        } catch (java.io.IOException | IllegalArgumentException e) {
+            throw new PersistenceException("Error opening book: " + e.getMessage(), e);
+        }
+    }
+    
+    public GameRules getRules() {
+        return rules;
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    // The book move for this position in its own frame, or -1 if the book has none
+    public int probe(Position position) {
+        if (!rules.equals(position.getRules())) {
+            return -1;
+        }
+        int entry = find(position.getCanonicalHash());
+        if (entry < 0) {
+            return -1;
+        }
+        int move = buffer.getShort(HEADER_BYTES + entry * ENTRY_BYTES + 8);
+        return position.fromCanonical(move);
+    }
+    
+    // Absolute reads only, so lookups from several threads need no locking
+    private int find(long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = buffer.getLong(HEADER_BYTES + mid * ENTRY_BYTES);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
+
+// 37. Builds an opening book offline by searching every position up to a number of stones
+// Positions are expanded breadth-first and deduplicated by symmetry class,
+// so each class is searched once. Run with:
+// java OpeningBookBuilder [rows cols winLength] [plies] [millis per position] [file]
+class OpeningBookBuilder {
+    private final GameRules rules;
+    private final java.util.Map<Long, Integer> entries = new java.util.HashMap<>();
+    
+    public OpeningBookBuilder(GameRules rules) {
+        this.rules = rules;
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    // Records the move for this position; the book stores it in the canonical frame
+    public void add(Position position, int move) {
+        if (!rules.equals(position.getRules())) {
+            throw new IllegalArgumentException("Position is not " + rules);
+        }
+        entries.put(position.getCanonicalHash(), position.toCanonical(move));
+    }
+    
+    // Searches every non-terminal position with fewer than plies stones
+    public void generate(MoveStrategy strategy, int plies) {
+        generate(strategy, plies, null);
+    }
+    
+    // As above, reporting (ply, positions searched) after each ply if progress is given
+    public void generate(MoveStrategy strategy, int plies,
+            java.util.function.BiConsumer<Integer, Integer> progress) {
+        java.util.List<Position> layer = new java.util.ArrayList<>();
+        layer.add(new Position(rules));
+        int[] moves = new int[rules.getCellCount()];
+        for (int ply = 0; ply < plies && !layer.isEmpty(); ply++) {
+            java.util.List<Position> next = new java.util.ArrayList<>();
+            java.util.Set<Long> seen = new java.util.HashSet<>();
+            for (Position position : layer) {
+                add(position, strategy.selectMove(position.copy()));
+                if (ply + 1 == plies) {
+                    continue;
+                }
+                int count = position.generateMoves(moves);
+                for (int i = 0; i < count; i++) {
+                    Position child = position.copy();
+                    child.make(moves[i]);
+                    if (!child.isWinAt(moves[i]) && !child.isFull() && seen.add(child.getCanonicalHash())) {
+                        next.add(child);
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.accept(ply, layer.size());
+            }
+            layer = next;
+        }
+    }
+    
+    public void write(java.io.File file) throws PersistenceException {
+        long[] keys = new long[entries.size()];
+        int n = 0;
+        for (long key : entries.keySet()) {
+            keys[n++] = key;
+        }
+        java.util.Arrays.sort(keys);
+        
+        try (java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.BufferedOutputStream(new java.io.FileOutputStream(file)))) {
+            out.writeInt(OpeningBook.MAGIC);
+            out.writeInt(OpeningBook.VERSION);
+            out.writeInt(rules.getRows());
+            out.writeInt(rules.getCols());
+            out.writeInt(rules.getWinLength());
+            out.writeInt(keys.length);
+            for (long key : keys) {
+                out.writeLong(key);
+                out.writeShort(entries.get(key));
+            }
+        } catch (java.io.IOException e) {
+            throw new PersistenceException("Error writing opening book: " + e.getMessage(), e);
+        }
+    }
+    
+    public static void main(String[] args) throws PersistenceException {
+        GameRules rules = args.length >= 3
+                ? new GameRules(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                : new GameRules(15, 15, 5);
+        int plies = args.length >= 4 ? Integer.parseInt(args[3]) : 2;
+        long millis = args.length >= 5 ? Long.parseLong(args[4]) : 200;
+        java.io.File file = new java.io.File(args.length >= 6 ? args[5] : "opening_book.bin");
+        
+        AlphaBetaStrategy strategy = new AlphaBetaStrategy();
+        strategy.setTimeBudgetMillis(millis);
+        strategy.setThreadCount(Runtime.getRuntime().availableProcessors());
+        OpeningBookBuilder builder = new OpeningBookBuilder(rules);
+        builder.generate(strategy, plies,
+                (ply, positions) -> System.out.println("ply " + ply + ": " + positions + " positions"));
+        strategy.shutdown();
+        builder.write(file);
+        System.out.println("Wrote " + builder.size() + " positions for " + rules + " to " + file);
+    }
+}
+
+// 38. Plays from an opening book while the position is in it, then defers to another strategy
+class OpeningBookStrategy implements MoveStrategy {
+    private final OpeningBook book;
+    private final MoveStrategy fallback;
+    
+    public OpeningBookStrategy(OpeningBook book, MoveStrategy fallback) {
+        this.book = book;
+        this.fallback = fallback;
+    }
+    
+    public OpeningBook getBook() {
+        return book;
+    }
+    
+    public MoveStrategy getFallback() {
+        return fallback;
+    }
+    
+    @Override
+    public void setThreadCount(int threads) {
+        fallback.setThreadCount(threads);
+    }
+    
+    @Override
+    public void stop() {
+        fallback.stop();
+    }
+    
+    @Override
+    public int selectMove(Position position) {
+        int move = book.probe(position);
+        if (move >= 0 && position.isEmpty(move)) {
+            return move;
+        }
+        return fallback.selectMove(position);
+    }
+}
+
+// 39. Win-window counts kept up to date move by move, for threat detection
+// For every window the board counts each side's stones, updating only the
+// windows through the cell that changed. A window holding k - 1 stones of
+// one side and none of the other is a four: its empty cell wins. One with
+// k - 2 stones and no opponent stones is a three: one move makes it a four.
+class ThreatBoard {
+    public static final int NONE = 0;
+    public static final int THREE = 1;
+    public static final int FOUR = 2;
+    public static final int DOUBLE = 3;
+    
+    private final GameRules rules;
+    private final WinLines lines;
+    private final int winLength;
+    private final Position position;
+    private final int[][] counts;
+    private final int[] stamps;
+    private int stamp;
+    
+    public ThreatBoard(GameRules rules) {
+        this.rules = rules;
+        this.lines = WinLines.forRules(rules);
+        this.winLength = rules.getWinLength();
+        this.position = new Position(rules);
+        this.counts = new int[2][lines.getLineCount()];
+        this.stamps = new int[rules.getCellCount()];
+    }
+    
+    public GameRules getRules() {
+        return rules;
+    }
+    
+    public Position getPosition() {
+        return position;
+    }
+    
+    public void load(Position source) {
+        position.copyFrom(source);
+        for (int line = 0; line < lines.getLineCount(); line++) {
+            counts[0][line] = 0;
+            counts[1][line] = 0;
+            for (int index : lines.getLineCells(line)) {
+                int mark = source.get(index);
+                if (mark != 0) {
+                    counts[mark - 1][line]++;
+                }
+            }
+        }
+    }
+    
+    public void make(int index) {
+        int side = position.getSideToMove();
+        position.make(index);
+        for (int line : lines.getLinesThrough(index)) {
+            counts[side][line]++;
+        }
+    }
+    
+    public void unmake(int index) {
+        int side = position.get(index) - 1;
+        position.unmake(index);
+        for (int line : lines.getLinesThrough(index)) {
+            counts[side][line]--;
+        }
+    }
+    
+    public boolean isWinAt(int index) {
+        int side = position.get(index) - 1;
+        for (int line : lines.getLinesThrough(index)) {
+            if (counts[side][line] == winLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Writes the distinct cells where side would complete a window and returns how many
+    public int winningCells(int side, int[] out) {
+        nextStamp();
+        int count = 0;
+        for (int line = 0; line < lines.getLineCount(); line++) {
+            if (isFour(side, line)) {
+                count = collectEmpty(line, out, count);
+            }
+        }
+        return count;
+    }
+    
+    // Like winningCells, but only over the windows through index (normally the last move)
+    public int winningCellsThrough(int index, int side, int[] out) {
+        nextStamp();
+        int count = 0;
+        for (int line : lines.getLinesThrough(index)) {
+            if (isFour(side, line)) {
+                count = collectEmpty(line, out, count);
+            }
+        }
+        return count;
+    }
+    
+    // Writes the distinct empty cells that would turn a three of side into a four
+    public int fourMakingCells(int side, int[] out) {
+        nextStamp();
+        int count = 0;
+        for (int line = 0; line < lines.getLineCount(); line++) {
+            if (counts[1 - side][line] == 0 && counts[side][line] == winLength - 2) {
+                count = collectEmpty(line, out, count);
+            }
+        }
+        return count;
+    }
+    
+    // Strongest threat the stone on index creates for its owner: a double
+    // threat is two fours, a four and a three on another window, or two threes
+    public int classify(int index) {
+        int side = position.get(index) - 1;
+        int fourCells = 0;
+        int fourCell = -1;
+        int threes = 0;
+        for (int line : lines.getLinesThrough(index)) {
+            if (counts[1 - side][line] != 0) {
+                continue;
+            }
+            if (counts[side][line] == winLength - 1) {
+                int cell = emptyCell(line);
+                if (cell != fourCell) {
+                    fourCell = cell;
+                    fourCells++;
+                }
+            } else if (counts[side][line] == winLength - 2 && winLength > 2) {
+                threes++;
+            }
+        }
+        if (fourCells >= 2 || (fourCells == 1 && threes > 0) || threes >= 2) {
+            return DOUBLE;
+        }
+        return fourCells == 1 ? FOUR : threes == 1 ? THREE : NONE;
+    }
+    
+    private boolean isFour(int side, int line) {
+        return counts[1 - side][line] == 0 && counts[side][line] == winLength - 1;
+    }
+    
+    private int collectEmpty(int line, int[] out, int count) {
+        for (int index : lines.getLineCells(line)) {
+            if (position.isEmpty(index) && stamps[index] != stamp) {
+                stamps[index] = stamp;
+                out[count++] = index;
+            }
+        }
+        return count;
+    }
+    
+    private int emptyCell(int line) {
+        for (int index : lines.getLineCells(line)) {
+            if (position.isEmpty(index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+    
+    private void nextStamp() {
+        if (++stamp == 0) {
+            java.util.Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+}
+
+// 40. Threat-space search: looks for a win by continuous fours (VCF)
+// The attacker only plays moves that make a four, so every defender reply
+// is forced; the search tree stays narrow and finds long forced wins on
+// large boards that a full-width search would need many plies to see.
+// Lines where the defender's forced block makes a four of its own are not
+// followed, so a reported win is always sound.
+class ThreatSpaceSearch {
+    public static final int DEFAULT_MAX_DEPTH = 16;
+    public static final long DEFAULT_NODE_LIMIT = 200_000;
+    
+    private final int maxDepth;
+    private final long nodeLimit;
+    private ThreatBoard board;
+    private int[][] buffers;
+    private int[] line;
+    private int lineLength;
+    private long nodes;
+    
+    public ThreatSpaceSearch() {
+        this(DEFAULT_MAX_DEPTH, DEFAULT_NODE_LIMIT);
+    }
+    
+    public ThreatSpaceSearch(int maxDepth, long nodeLimit) {
+        this.maxDepth = maxDepth;
+        this.nodeLimit = nodeLimit;
+    }
+    
+    // First move of a forced win for the side to move, or -1 if none was found.
+    // Assumes the defender has no win on the board; check that first.
+    public int findWin(Position position) {
+        prepare(position.getRules());
+        board.load(position);
+        nodes = 0;
+        lineLength = 0;
+        int attacker = position.getSideToMove();
+        return search(attacker, 0) ? line[0] : -1;
+    }
+    
+    // The winning sequence from the last successful findWin, defender replies included
+    public int[] getWinningLine() {
+        return java.util.Arrays.copyOf(line, lineLength);
+    }
+    
+    public long getLastNodeCount() {
+        return nodes;
+    }
+    
+    private boolean search(int attacker, int depth) {
+        int[] buffer = buffers[2 * depth];
+        int count = board.winningCells(attacker, buffer);
+        if (count > 0) {
+            record(depth * 2, buffer[0]);
+            return true;
+        }
+        if (depth >= maxDepth || nodes >= nodeLimit) {
+            return false;
+        }
+        int[] threats = buffers[2 * depth + 1];
+        count = board.fourMakingCells(attacker, buffer);
+        for (int i = 0; i < count; i++) {
+            int move = buffer[i];
+            nodes++;
+            board.make(move);
+            int blocks = board.winningCellsThrough(move, attacker, threats);
+            boolean won;
+            if (blocks >= 2) {
+                // Double four: whichever cell the defender takes, the other wins
+                won = true;
+                lineLength = depth * 2 + 1;
+            } else {
+                int block = threats[0];
+                board.make(block);
+                won = board.winningCellsThrough(block, 1 - attacker, threats) == 0
+                        && search(attacker, depth + 1);
+                board.unmake(block);
+                if (won) {
+                    line[depth * 2 + 1] = block;
+                }
+            }
+            board.unmake(move);
+            if (won) {
+                line[depth * 2] = move;
+                return true;
+            }
+            if (nodes >= nodeLimit) {
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    private void record(int length, int winningMove) {
+        line[length] = winningMove;
+        lineLength = length + 1;
+    }
+    
+    private void prepare(GameRules rules) {
+        if (board != null && board.getRules().equals(rules)) {
+            return;
+        }
+        board = new ThreatBoard(rules);
+        buffers = new int[2 * maxDepth + 2][rules.getCellCount()];
+        line = new int[2 * maxDepth + 2];
+    }
+}
+
+// 41. Plays forced moves and threat-space wins before handing over to general search
+// In order: complete our own window, block the opponent's, play a VCF win.
+class ThreatSpaceStrategy implements MoveStrategy {
+    private final MoveStrategy fallback;
+    private final ThreatSpaceSearch search;
+    private ThreatBoard board;
+    private int[] cells;
+    
+    public ThreatSpaceStrategy(MoveStrategy fallback) {
+        this(fallback, new ThreatSpaceSearch());
+    }
+    
+    public ThreatSpaceStrategy(MoveStrategy fallback, ThreatSpaceSearch search) {
+        this.fallback = fallback;
+        this.search = search;
+    }
+    
+    public MoveStrategy getFallback() {
+        return fallback;
+    }
+    
+    public ThreatSpaceSearch getSearch() {
+        return search;
+    }
+    
+    @Override
+    public void setThreadCount(int threads) {
+        fallback.setThreadCount(threads);
+    }
+    
+    @Override
+    public void stop() {
+        fallback.stop();
+    }
+    
+    @Override
+    public int selectMove(Position position) {
+        if (board == null || !board.getRules().equals(position.getRules())) {
+            board = new ThreatBoard(position.getRules());
+            cells = new int[position.getCellCount()];
+        }
+        board.load(position);
+        int side = position.getSideToMove();
+        if (board.winningCells(side, cells) > 0) {
+            return cells[0];
+        }
+        if (board.winningCells(1 - side, cells) > 0) {
+            return cells[0];
+        }
+        int move = search.findWin(position);
+        return move >= 0 ? move : fallback.selectMove(position);
+    }
+}
+
+// 42. Cells worth searching: empty cells within a radius of some mark
+// Each cell counts the marks in the (2r+1) x (2r+1) square around it, and a
+// bitset holds the empty cells whose count is non-zero. Placing or removing
+// a mark only touches that square, so the set is kept up to date move by
+// move. On an empty board the only candidate is the center. Radius 0 turns
+// the restriction off and every empty cell is a candidate.
+class CandidateSet {
+    public static final int DEFAULT_RADIUS = 2;
+    // Boards up to 8x8 are small enough to search over every empty cell
+    public static final int RESTRICT_ABOVE_CELLS = 64;
+    
+    private final int rows;
+    private final int cols;
+    private final int cellCount;
+    private final int radius;
+    private final int center;
+    private final int[] counts;
+    private final long[] candidates;
+    private final long[] occupied;
+    private int marks;
+    
+    public static int radiusFor(GameRules rules) {
+        return rules.getCellCount() > RESTRICT_ABOVE_CELLS ? DEFAULT_RADIUS : 0;
+    }
+    
+    public CandidateSet(GameRules rules, int radius) {
+        this.rows = rules.getRows();
+        this.cols = rules.getCols();
+        this.cellCount = rules.getCellCount();
+        this.radius = radius;
+        this.center = (rows / 2) * cols + cols / 2;
+        this.counts = new int[cellCount];
+        this.candidates = new long[(cellCount + 63) >>> 6];
+        this.occupied = new long[candidates.length];
+    }
+    
+    public int getRadius() {
+        return radius;
+    }
+    
+    public boolean isRestricted() {
+        return radius > 0;
+    }
+    
+    public void add(int index) {
+        occupied[index >>> 6] |= 1L << index;
+        candidates[index >>> 6] &= ~(1L << index);
+        marks++;
+        if (radius == 0) {
+            return;
+        }
+        int row = index / cols;
+        int col = index % cols;
+        for (int i = Math.max(0, row - radius); i <= Math.min(rows - 1, row + radius); i++) {
+            for (int j = Math.max(0, col - radius); j <= Math.min(cols - 1, col + radius); j++) {
+                int neighbour = i * cols + j;
+                if (++counts[neighbour] == 1 && (occupied[neighbour >>> 6] & (1L << neighbour)) == 0) {
+                    candidates[neighbour >>> 6] |= 1L << neighbour;
+                }
+            }
+        }
+    }
+    
+    public void remove(int index) {
+        occupied[index >>> 6] &= ~(1L << index);
+        marks--;
+        if (radius == 0) {
+            return;
+        }
+        int row = index / cols;
+        int col = index % cols;
+        for (int i = Math.max(0, row - radius); i <= Math.min(rows - 1, row + radius); i++) {
+            for (int j = Math.max(0, col - radius); j <= Math.min(cols - 1, col + radius); j++) {
+                int neighbour = i * cols + j;
+                if (--counts[neighbour] == 0) {
+                    candidates[neighbour >>> 6] &= ~(1L << neighbour);
+                }
+            }
+        }
+        // The freed cell is a candidate again if other marks are still near it
+        if (counts[index] > 0) {
+            candidates[index >>> 6] |= 1L << index;
+        }
+    }
+    
+    public boolean contains(int index) {
+        if (radius == 0 || marks == 0) {
+            return (occupied[index >>> 6] & (1L << index)) == 0 && (radius == 0 || index == center);
+        }
+        return (candidates[index >>> 6] & (1L << index)) != 0;
+    }
+    
+    // Next candidate index >= from, or -1 when there is none
+    public int nextCandidate(int from) {
+        if (radius > 0 && marks == 0) {
+            return from <= center ? center : -1;
+        }
+        long[] bits = radius == 0 ? occupied : candidates;
+        long invert = radius == 0 ? -1L : 0L;
+        for (int word = from >>> 6; word < bits.length && from < cellCount; word++) {
+            long remaining = (bits[word] ^ invert) & (-1L << (word == from >>> 6 ? from & 63 : 0));
+            if (remaining != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                return index < cellCount ? index : -1;
+            }
+        }
+        return -1;
+    }
+    
+    public void clear() {
+        java.util.Arrays.fill(counts, 0);
+        java.util.Arrays.fill(candidates, 0L);
+        java.util.Arrays.fill(occupied, 0L);
+        marks = 0;
+    }
+    
+    // Overwrites this set with another one on the same rules and radius, without allocating
+    public void copyFrom(CandidateSet other) {
+        System.arraycopy(other.counts, 0, counts, 0, counts.length);
+        System.arraycopy(other.candidates, 0, candidates, 0, candidates.length);
+        System.arraycopy(other.occupied, 0, occupied, 0, occupied.length);
+        marks = other.marks;
+    }
+}
+
+// 43. Node counts of the alpha-beta search with each move-ordering heuristic on and off
+// Every configuration searches the same positions to the same depth on one
+// thread with a fresh table, so node counts compare directly.
+// Run with: java MoveOrderingBenchmark
+class MoveOrderingBenchmark {
+    // rows, cols, winLength, depth, then the moves already played
+    private static final int[][] POSITIONS = {
+        {4, 4, 4, 16},
+        {5, 5, 4, 8},
+        {6, 6, 4, 7, 14, 15, 21},
+        {7, 7, 4, 7, 24, 25, 17, 31},
+        {15, 15, 5, 5, 112, 113, 97, 127},
+        {19, 19, 5, 5, 180, 181, 161, 199, 162}
+    };
+    
+    public static void main(String[] args) {
+        String[] names = {"none", "killers", "history", "pvs", "all"};
+        boolean[][] configs = {
+            {false, false, false},
+            {true, false, false},
+            {false, true, false},
+            {false, false, true},
+            {true, true, true}
+        };
+        System.out.printf("%-22s", "position");
+        for (String name : names) {
+            System.out.printf("%14s", name);
+        }
+        System.out.println();
+        
+        long[] totals = new long[configs.length];
+        for (int[] spec : POSITIONS) {
+            GameRules rules = new GameRules(spec[0], spec[1], spec[2]);
+            Position position = new Position(rules);
+            for (int i = 4; i < spec.length; i++) {
+                position.make(spec[i]);
+            }
+            System.out.printf("%-22s", rules + " d" + spec[3]);
+            for (int c = 0; c < configs.length; c++) {
+                AlphaBetaStrategy strategy = new AlphaBetaStrategy(spec[3], new TranspositionTable(20));
+                strategy.setTimeBudgetMillis(0);
+                strategy.setKillerMoves(configs[c][0]);
+                strategy.setHistoryHeuristic(configs[c][1]);
+                strategy.setPrincipalVariationSearch(configs[c][2]);
+                strategy.selectMove(position.copy());
+                totals[c] += strategy.getLastNodeCount();
+                System.out.printf("%,14d", strategy.getLastNodeCount());
+            }
+            System.out.println();
+        }
+        System.out.printf("%-22s", "total");
+        for (long total : totals) {
+            System.out.printf("%,14d", total);
+        }
+        System.out.println();
+    }
+}
+
+// 44. Uniformly random empty cell; fast and varied, for simulations and tests
+class RandomStrategy implements MoveStrategy {
+    private final java.util.SplittableRandom random;
+    private int[] moves;
+    
+    public RandomStrategy(long seed) {
+        this.random = new java.util.SplittableRandom(seed);
+    }
+    
+    @Override
+    public int selectMove(Position position) {
+        if (moves == null || moves.length != position.getCellCount()) {
+            moves = new int[position.getCellCount()];
+        }
+        int count = position.generateAllMoves(moves);
+        return count == 0 ? -1 : moves[random.nextInt(count)];
+    }
+}
+
+// 45. Persistence that records nothing, for simulations and tests
+class NoOpGameDataPersistence implements GameDataPersistence {
+    @Override
+    public void saveGameResult(GameResult result) {
+    }
+    
+    @Override
+    public java.util.List<GameResult> loadGameResults() {
+        return new java.util.ArrayList<>();
+    }
+}
+
+// 46. Win/draw/loss counts of a series of games between two players, from player A's side
+class SelfPlayResult {
+    private long winsA;
+    private long draws;
+    private long winsB;
+    private long winsAsFirst;
+    private long lossesAsFirst;
+    private long nanos;
+    
+    public void record(int outcome, boolean aMovedFirst) {
+        if (outcome > 0) {
+            winsA++;
+        } else if (outcome < 0) {
+            winsB++;
+        } else {
+            draws++;
+        }
+        // Results of whoever moved first, to show the first-move advantage
+        int firstOutcome = aMovedFirst ? outcome : -outcome;
+        if (firstOutcome > 0) {
+            winsAsFirst++;
+        } else if (firstOutcome < 0) {
+            lossesAsFirst++;
+        }
+    }
+    
+    public void addNanos(long nanos) {
+        this.nanos += nanos;
+    }
+    
+    // Adds another series into this one; elapsed times add up as CPU time
+    public void merge(SelfPlayResult other) {
+        winsA += other.winsA;
+        draws += other.draws;
+        winsB += other.winsB;
+        winsAsFirst += other.winsAsFirst;
+        lossesAsFirst += other.lossesAsFirst;
+        nanos += other.nanos;
+    }
+    
+    public long getGames() {
+        return winsA + draws + winsB;
+    }
+    
+    public long getWinsA() {
+        return winsA;
+    }
+    
+    public long getDraws() {
+        return draws;
+    }
+    
+    public long getWinsB() {
+        return winsB;
+    }
+    
+    public long getFirstMoverWins() {
+        return winsAsFirst;
+    }
+    
+    public long getFirstMoverLosses() {
+        return lossesAsFirst;
+    }
+    
+    public long getNanos() {
+        return nanos;
+    }
+    
+    // Points per game for A: a win is 1, a draw 0.5
+    public double getScoreA() {
+        long games = getGames();
+        return games == 0 ? 0.5 : (winsA + draws / 2.0) / games;
+    }
+    
+    public double getGamesPerSecond() {
+        return nanos == 0 ? 0.0 : getGames() * 1e9 / nanos;
+    }
+    
+    @Override
+    public String toString() {
+        long games = getGames();
+        return String.format("%,d games: A %,d wins, %,d draws, B %,d wins (A scores %.1f%%); "
+                + "first mover %,d wins, %,d losses; %,.0f games/s",
+                games, winsA, draws, winsB, getScoreA() * 100,
+                winsAsFirst, lossesAsFirst, getGamesPerSecond());
+    }
+}
+
+// 47. Headless batch self-play between two move strategies
+// Games run through GameController exactly as in the UI, with persistence
+// switched off and no Swing class touched. Each side has its own controller
+// and board, which are reset and reused for every game; the two alternate
+// so both players move first equally often.
+// Run with: java SelfPlaySimulator [rows cols winLength] [games] [strategyA] [strategyB]
+// where a strategy is random, first, default, threats, alphabeta[:millis] or mcts[:millis].
+class SelfPlaySimulator {
+    private static final long DEFAULT_SEARCH_MILLIS = 20;
+    
+    private final ComputerPlayer playerA;
+    private final ComputerPlayer playerB;
+    private final GameController aFirst;
+    private final GameController bFirst;
+    private int openingPlies;
+    private java.util.SplittableRandom openingRandom;
+    private int[] emptyCells;
+    
+    public SelfPlaySimulator(GameRules rules, MoveStrategy strategyA, MoveStrategy strategyB) {
+        playerA = new ComputerPlayer("A", "X", strategyA);
+        playerB = new ComputerPlayer("B", "O", strategyB);
+        GameDataPersistence persistence = new NoOpGameDataPersistence();
+        aFirst = new GameController(new BitBoard(rules), persistence);
+        aFirst.addPlayer(playerA);
+        aFirst.addPlayer(playerB);
+        bFirst = new GameController(new BitBoard(rules), persistence);
+        bFirst.addPlayer(playerB);
+        bFirst.addPlayer(playerA);
+        emptyCells = new int[rules.getCellCount()];
+    }
+    
+    // Opens every game with this many uniformly random moves, so that
+    // deterministic strategies do not replay the same game over and over
+    public void setOpeningPlies(int openingPlies, long seed) {
+        this.openingPlies = openingPlies;
+        this.openingRandom = new java.util.SplittableRandom(seed);
+    }
+    
+    public SelfPlayResult run(long games) {
+        SelfPlayResult result = new SelfPlayResult();
+        long start = System.nanoTime();
+        for (long game = 0; game < games; game++) {
+            boolean aMovesFirst = (game & 1) == 0;
+            result.record(playGame(aMovesFirst), aMovesFirst);
+        }
+        result.addNanos(System.nanoTime() - start);
+        return result;
+    }
+    
+    // Plays one game and returns 1 if A won, -1 if B won and 0 for a draw
+    public int playGame(boolean aMovesFirst) {
+        GameController controller = aMovesFirst ? aFirst : bFirst;
+        controller.startNewGame();
+        for (int ply = 0; ply < openingPlies && !controller.isGameOver(); ply++) {
+            playRandomMove(controller);
+        }
+        while (!controller.isGameOver()) {
+            controller.makeComputerMove();
+        }
+        Player winner = controller.getWinner();
+        return winner == playerA ? 1 : winner == playerB ? -1 : 0;
+    }
+    
+    private void playRandomMove(GameController controller) {
+        Board board = controller.getBoard();
+        int count = 0;
+        for (int row = 0; row < board.getRows(); row++) {
+            for (int col = 0; col < board.getCols(); col++) {
+                if (board.isValidMove(row, col)) {
+                    emptyCells[count++] = row * board.getCols() + col;
+                }
+            }
+        }
+        int move = emptyCells[openingRandom.nextInt(count)];
+        controller.makeMove(move / board.getCols(), move % board.getCols());
+    }
+    
+    public static MoveStrategy parseStrategy(String spec, long seed) {
+        String[] parts = spec.split(":");
+        long millis = parts.length > 1 ? Long.parseLong(parts[1]) : DEFAULT_SEARCH_MILLIS;
+        switch (parts[0]) {
+            case "random":
+                return new RandomStrategy(seed);
+            case "first":
+                return new FirstAvailableStrategy();
+            case "threats":
+                return new ThreatSpaceStrategy(new RandomStrategy(seed));
+            case "alphabeta": {
+                AlphaBetaStrategy strategy = new AlphaBetaStrategy();
+                strategy.setTimeBudgetMillis(millis);
+                return strategy;
+            }
+            case "mcts": {
+                MctsStrategy strategy = new MctsStrategy();
+                strategy.setTimeBudgetMillis(millis);
+                return strategy;
+            }
+            case "default": {
+                AlphaBetaStrategy strategy = new AlphaBetaStrategy();
+                strategy.setTimeBudgetMillis(millis);
+                return new TablebaseStrategy(new ThreatSpaceStrategy(strategy));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown strategy: " + spec);
+        }
+    }
+    
+    public static void main(String[] args) {
+        int offset = args.length >= 3 ? 3 : 0;
+        GameRules rules = offset == 3
+                ? new GameRules(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                : new GameRules(3);
+        long games = args.length > offset ? Long.parseLong(args[offset]) : 1_000_000;
+        String specA = args.length > offset + 1 ? args[offset + 1] : "random";
+        String specB = args.length > offset + 2 ? args[offset + 2] : "random";
+        
+        SelfPlaySimulator simulator = new SelfPlaySimulator(rules,
+                parseStrategy(specA, 1), parseStrategy(specB, 2));
+        System.out.println(rules + ": A = " + specA + ", B = " + specB);
+        System.out.println(simulator.run(games));
+    }
+}
+
+// 48. Round-robin and Swiss tournaments between move strategies on a fork-join pool
+// Matches are cut into tasks of a few games and spread over a ForkJoinPool.
+// Every worker thread builds its own strategy instances and simulators
+// (boards, controllers, opening RNG) on first use, so games share no
+// mutable state. Each task returns its own per-pair counts and the counts
+// are merged up the fork-join tree, so there are no shared counters.
+// Run with: java TournamentRunner [rows cols winLength] [games per pair] [--swiss=rounds] [--threads=n] [strategy ...]
+// using the strategy names of SelfPlaySimulator.
+class TournamentRunner {
+    private static final int GAMES_PER_TASK = 32;
+    
+    private final GameRules rules;
+    private final java.util.List<String> names = new java.util.ArrayList<>();
+    private final java.util.List<java.util.function.LongFunction<MoveStrategy>> factories = new java.util.ArrayList<>();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int openingPlies;
+    private long seed = 1;
+    private ThreadLocal<MoveStrategy[]> strategies;
+    private ThreadLocal<SelfPlaySimulator[]> simulators;
+    
+    public TournamentRunner(GameRules rules) {
+        this.rules = rules;
+    }
+    
+    // The factory gets a seed and must return a fresh instance on every call
+    public void addEntrant(String name, java.util.function.LongFunction<MoveStrategy> factory) {
+        names.add(name);
+        factories.add(factory);
+    }
+    
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+    
+    public void setOpeningPlies(int openingPlies) {
+        this.openingPlies = openingPlies;
+    }
+    
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    // Every entrant plays every other one gamesPerPair games, half of them moving first
+    public TournamentResult runRoundRobin(int gamesPerPair) {
+        java.util.List<int[]> pairs = new java.util.ArrayList<>();
+        for (int a = 0; a < names.size(); a++) {
+            for (int b = a + 1; b < names.size(); b++) {
+                pairs.add(new int[] {a, b});
+            }
+        }
+        TournamentResult result = new TournamentResult(names);
+        long start = System.nanoTime();
+        run(pairs, gamesPerPair, result);
+        result.addWallNanos(System.nanoTime() - start);
+        return result;
+    }
+    
+    // Each round pairs entrants with equal or close scores who have not met yet
+    public TournamentResult runSwiss(int rounds, int gamesPerMatch) {
+        TournamentResult result = new TournamentResult(names);
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            java.util.List<int[]> pairs = swissPairs(result);
+            if (pairs.isEmpty()) {
+                break;
+            }
+            run(pairs, gamesPerMatch, result);
+        }
+        result.addWallNanos(System.nanoTime() - start);
+        return result;
+    }
+    
+    private java.util.List<int[]> swissPairs(TournamentResult result) {
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        java.util.Arrays.sort(order, (x, y) -> Double.compare(result.getPoints(y), result.getPoints(x)));
+        boolean[] paired = new boolean[order.length];
+        java.util.List<int[]> pairs = new java.util.ArrayList<>();
+        for (int i = 0; i < order.length; i++) {
+            if (paired[order[i]]) {
+                continue;
+            }
+            // The next entrant down the standings that is still free and not yet met
+            for (int j = i + 1; j < order.length; j++) {
+                int a = order[i];
+                int b = order[j];
+                if (!paired[b] && result.get(a, b).getGames() == 0) {
+                    paired[a] = true;
+                    paired[b] = true;
+                    pairs.add(new int[] {Math.min(a, b), Math.max(a, b)});
+                    break;
+                }
+            }
+        }
+        return pairs;
+    }
+    
+    private void run(java.util.List<int[]> pairs, int games, TournamentResult result) {
+        // Chunks of an even number of games keep the first move balanced
+        java.util.List<int[]> units = new java.util.ArrayList<>();
+        for (int[] pair : pairs) {
+            for (int done = 0; done < games; done += GAMES_PER_TASK) {
+                units.add(new int[] {pair[0], pair[1], Math.min(GAMES_PER_TASK, games - done)});
+            }
+        }
+        int entrants = names.size();
+        strategies = ThreadLocal.withInitial(() -> new MoveStrategy[entrants]);
+        simulators = ThreadLocal.withInitial(() -> new SelfPlaySimulator[entrants * entrants]);
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(parallelism);
+        try {
+            SelfPlayResult[] counts = pool.invoke(new TournamentTask(this, units, 0, units.size(), entrants));
+            result.merge(counts);
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    // Runs on a pool thread, with that thread's own simulator for the pair
+    SelfPlayResult playUnit(int a, int b, int games) {
+        int entrants = names.size();
+        SelfPlaySimulator[] own = simulators.get();
+        SelfPlaySimulator simulator = own[a * entrants + b];
+        if (simulator == null) {
+            long threadSeed = seed * 0x9E3779B97F4A7C15L + Thread.currentThread().getId();
+            simulator = new SelfPlaySimulator(rules, strategy(a, threadSeed), strategy(b, threadSeed));
+            simulator.setOpeningPlies(openingPlies, threadSeed ^ (a * entrants + b));
+            own[a * entrants + b] = simulator;
+        }
+        return simulator.run(games);
+    }
+    
+    private MoveStrategy strategy(int entrant, long threadSeed) {
+        MoveStrategy[] own = strategies.get();
+        if (own[entrant] == null) {
+            own[entrant] = factories.get(entrant).apply(threadSeed + entrant);
+        }
+        return own[entrant];
+    }
+    
+    public static void main(String[] args) {
+        java.util.List<String> rest = new java.util.ArrayList<>(java.util.Arrays.asList(args));
+        int swissRounds = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (java.util.Iterator<String> it = rest.iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.startsWith("--swiss=")) {
+                swissRounds = Integer.parseInt(arg.substring("--swiss=".length()));
+                it.remove();
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+                it.remove();
+            }
+        }
+        GameRules rules = new GameRules(3);
+        if (rest.size() >= 3 && rest.get(2).matches("\\d+")) {
+            rules = new GameRules(Integer.parseInt(rest.get(0)), Integer.parseInt(rest.get(1)), Integer.parseInt(rest.get(2)));
+            rest = rest.subList(3, rest.size());
+        }
+        int games = 200;
+        if (!rest.isEmpty() && rest.get(0).matches("\\d+")) {
+            games = Integer.parseInt(rest.get(0));
+            rest = rest.subList(1, rest.size());
+        }
+        if (rest.isEmpty()) {
+            rest = java.util.Arrays.asList("random", "first", "threats", "mcts:2", "alphabeta:2", "default:2");
+        }
+        
+        TournamentRunner runner = new TournamentRunner(rules);
+        runner.setParallelism(threads);
+        for (String spec : rest) {
+            runner.addEntrant(spec, seed -> SelfPlaySimulator.parseStrategy(spec, seed));
+        }
+        runner.setOpeningPlies(rules.getCellCount() > 9 ? 2 : 1);
+        System.out.println(rules + ", " + games + " games per " + (swissRounds > 0 ? "match, " + swissRounds
+                + " Swiss rounds" : "pair, round robin") + ", " + runner.parallelism + " threads");
+        TournamentResult result = swissRounds > 0 ? runner.runSwiss(swissRounds, games) : runner.runRoundRobin(games);
+        System.out.print(result.formatStandings());
+    }
+}
+
+// 49. Splits a tournament's work units in halves until each task plays a single unit
+class TournamentTask extends java.util.concurrent.RecursiveTask<SelfPlayResult[]> {
+    private static final long serialVersionUID = 1L;
+    
+    private final TournamentRunner runner;
+    private final java.util.List<int[]> units;
+    private final int from;
+    private final int to;
+    private final int entrants;
+    
+    public TournamentTask(TournamentRunner runner, java.util.List<int[]> units, int from, int to, int entrants) {
+        this.runner = runner;
+        this.units = units;
+        this.from = from;
+        this.to = to;
+        this.entrants = entrants;
+    }
+    
+    // Results are indexed by a * entrants + b, from a's side (a < b)
+    @Override
+    protected SelfPlayResult[] compute() {
+        if (to - from == 1) {
+            int[] unit = units.get(from);
+            SelfPlayResult[] counts = new SelfPlayResult[entrants * entrants];
+            counts[unit[0] * entrants + unit[1]] = runner.playUnit(unit[0], unit[1], unit[2]);
+            return counts;
+        }
+        int mid = (from + to) >>> 1;
+        TournamentTask left = new TournamentTask(runner, units, from, mid, entrants);
+        left.fork();
+        SelfPlayResult[] counts = new TournamentTask(runner, units, mid, to, entrants).compute();
+        SelfPlayResult[] other = left.join();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == null) {
+                counts[i] = other[i];
+            } else if (other[i] != null) {
+                counts[i].merge(other[i]);
+            }
+        }
+        return counts;
+    }
+}
+
+// 50. Pairwise results of a tournament, standings and Elo estimates
+class TournamentResult {
+    private static final double BASE_ELO = 1500;
+    
+    private final java.util.List<String> names;
+    private final SelfPlayResult[][] pairs;
+    private long wallNanos;
+    
+    public TournamentResult(java.util.List<String> names) {
+        this.names = new java.util.ArrayList<>(names);
+        this.pairs = new SelfPlayResult[names.size()][names.size()];
+        for (int a = 0; a < names.size(); a++) {
+            for (int b = 0; b < names.size(); b++) {
+                pairs[a][b] = new SelfPlayResult();
+            }
+        }
+    }
+    
+    public void merge(SelfPlayResult[] counts) {
+        int n = names.size();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != null) {
+                pairs[i / n][i % n].merge(counts[i]);
+            }
+        }
+    }
+    
+    public void addWallNanos(long nanos) {
+        wallNanos += nanos;
+    }
+    
+    // Results of a against b from a's side; only a < b is stored
+    public SelfPlayResult get(int a, int b) {
+        return pairs[Math.min(a, b)][Math.max(a, b)];
+    }
+    
+    public double getPoints(int entrant) {
+        double points = 0;
+        for (int other = 0; other < names.size(); other++) {
+            if (other != entrant) {
+                SelfPlayResult pair = get(entrant, other);
+                long wins = entrant < other ? pair.getWinsA() : pair.getWinsB();
+                points += wins + pair.getDraws() / 2.0;
+            }
+        }
+        return points;
+    }
+    
+    public long getGames(int entrant) {
+        long games = 0;
+        for (int other = 0; other < names.size(); other++) {
+            if (other != entrant) {
+                games += get(entrant, other).getGames();
+            }
+        }
+        return games;
+    }
+    
+    public long getTotalGames() {
+        long games = 0;
+        for (int a = 0; a < names.size(); a++) {
+            for (int b = a + 1; b < names.size(); b++) {
+                games += pairs[a][b].getGames();
+            }
+        }
+        return games;
+    }
+    
+    // Bradley-Terry ratings fitted with the MM algorithm, on the Elo scale
+    // with mean BASE_ELO. Every pair gets one virtual draw, which keeps the
+    // ratings finite for entrants that won or lost every game.
+    public double[] getElo() {
+        int n = names.size();
+        double[] strength = new double[n];
+        java.util.Arrays.fill(strength, 1.0);
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            double[] next = new double[n];
+            double logSum = 0;
+            for (int i = 0; i < n; i++) {
+                double points = 0;
+                double denominator = 0;
+                for (int j = 0; j < n; j++) {
+                    if (j != i) {
+                        SelfPlayResult pair = get(i, j);
+                        long wins = i < j ? pair.getWinsA() : pair.getWinsB();
+                        points += wins + pair.getDraws() / 2.0 + 0.5;
+                        denominator += (pair.getGames() + 1) / (strength[i] + strength[j]);
+                    }
+                }
+                next[i] = points / denominator;
+                logSum += Math.log(next[i]);
+            }
+            double scale = Math.exp(logSum / n);
+            for (int i = 0; i < n; i++) {
+                strength[i] = next[i] / scale;
+            }
+        }
+        double[] elo = new double[n];
+        for (int i = 0; i < n; i++) {
+            elo[i] = BASE_ELO + 400 * Math.log10(strength[i]);
+        }
+        return elo;
+    }
+    
+    public String formatStandings() {
+        int n = names.size();
+        double[] elo = getElo();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        java.util.Arrays.sort(order, (x, y) -> Double.compare(getPoints(y), getPoints(x)));
+        
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-4s %-16s %8s %8s %8s %8s %7s %6s%n",
+                "#", "player", "games", "wins", "draws", "losses", "score", "elo"));
+        for (int rank = 0; rank < n; rank++) {
+            int i = order[rank];
+            long wins = 0;
+            long draws = 0;
+            for (int j = 0; j < n; j++) {
+                if (j != i) {
+                    SelfPlayResult pair = get(i, j);
+                    wins += i < j ? pair.getWinsA() : pair.getWinsB();
+                    draws += pair.getDraws();
+                }
+            }
+            long games = getGames(i);
+            text.append(String.format("%-4d %-16s %,8d %,8d %,8d %,8d %6.1f%% %6.0f%n",
+                    rank + 1, names.get(i), games, wins, draws, games - wins - draws,
+                    games == 0 ? 0.0 : 100.0 * getPoints(i) / games, elo[i]));
+        }
+        double seconds = wallNanos / 1e9;
+        text.append(String.format("%,d games in %.2f s (%,.0f games/s)%n",
+                getTotalGames(), seconds, seconds == 0 ? 0.0 : getTotalGames() / seconds));
+        return text.toString();
+    }
+}
+
+// 51. Compact state of one hosted game: two bitboards, status and move count
+// Only boards of up to 64 cells fit. The object is its own lock; it is
+// small enough that a registry can keep a hundred thousand of them, and
+// can be copied onto a full Board when a GameController needs one.
+class GameSession {
+    // values() clones its array on every call
+    private static final GameState[] STATES = GameState.values();
+    
+    private final long id;
+    private final GameRules rules;
+    private long firstMarks;
+    private long secondMarks;
+    private byte status;
+    private short moveCount;
+    private volatile long lastAccessNanos;
+    
+    public GameSession(long id, GameRules rules) {
+        if (rules.getCellCount() > 64) {
+            throw new IllegalArgumentException("Compact sessions support boards of up to 64 cells");
+        }
+        this.id = id;
+        this.rules = rules;
+        touch();
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    public GameRules getRules() {
+        return rules;
+    }
+    
+    public long getLastAccessNanos() {
+        return lastAccessNanos;
+    }
+    
+    void touch() {
+        lastAccessNanos = System.nanoTime();
+    }
+    
+    public synchronized GameState getStatus() {
+        return STATES[status];
+    }
+    
+    public synchronized int getMoveCount() {
+        return moveCount;
+    }
+    
+    // Side to move: 0 for the first mover, 1 for the second
+    public synchronized int getSideToMove() {
+        return moveCount & 1;
+    }
+    
+    // Cells taken by either side, one bit per cell
+    public synchronized long getOccupied() {
+        return firstMarks | secondMarks;
+    }
+    
+    public synchronized GameState play(int row, int col) throws InvalidMoveException {
+        touch();
+        if (status != GameState.IN_PROGRESS.ordinal()) {
+            throw new InvalidMoveException("Game " + id + " is over");
+        }
+        if (row < 0 || row >= rules.getRows() || col < 0 || col >= rules.getCols()) {
+            throw new InvalidMoveException("Invalid move: Cell is out of bounds");
+        }
+        int index = row * rules.getCols() + col;
+        long bit = 1L << index;
+        if (((firstMarks | secondMarks) & bit) != 0) {
+            throw new InvalidMoveException("Invalid move: Cell is already occupied");
+        }
+        boolean first = (moveCount & 1) == 0;
+        long marks = first ? (firstMarks |= bit) : (secondMarks |= bit);
+        moveCount++;
+        if (WinLines.forRules(rules).anyCompleteThrough(index, marks)) {
+            status = (byte) (first ? GameState.PLAYER_X_WIN : GameState.PLAYER_O_WIN).ordinal();
+        } else if (moveCount == rules.getCellCount()) {
+            status = (byte) GameState.TIE.ordinal();
+        }
+        return STATES[status];
+    }
+    
+    public synchronized void reset() {
+        touch();
+        firstMarks = 0;
+        secondMarks = 0;
+        status = (byte) GameState.IN_PROGRESS.ordinal();
+        moveCount = 0;
+    }
+    
+    // Replays this game onto a full board, e.g. to hand it to a GameController
+    public synchronized void copyTo(Board board, Player first, Player second) {
+        board.reset();
+        // Place the first mover's mark first, so the board assigns it slot 0
+        long firstLeft = firstMarks;
+        long secondLeft = secondMarks;
+        while (firstLeft != 0 || secondLeft != 0) {
+            if (firstLeft != 0) {
+                int index = Long.numberOfTrailingZeros(firstLeft);
+                firstLeft &= firstLeft - 1;
+                board.placeMark(index / rules.getCols(), index % rules.getCols(), first);
+            }
+            if (secondLeft != 0) {
+                int index = Long.numberOfTrailingZeros(secondLeft);
+                secondLeft &= secondLeft - 1;
+                board.placeMark(index / rules.getCols(), index % rules.getCols(), second);
+            }
+        }
+    }
+}
+
+// 52. Hosts many games in one JVM, keyed by game ID
+// A ConcurrentHashMap holds the sessions; it locks per bin, so threads
+// working on different games rarely contend, and each move only locks its
+// own session. Sessions idle for longer than a limit can be evicted, either
+// on demand or by a background sweeper.
+class GameSessionRegistry {
+    // Rough per-entry footprint on a 64-bit JVM with compressed references:
+    // session object (56), boxed Long key (16), map node (32), table slot (~10)
+    public static final int ESTIMATED_BYTES_PER_SESSION = 56 + 16 + 32 + 10;
+    
+    private final java.util.concurrent.ConcurrentHashMap<Long, GameSession> sessions;
+    private final java.util.concurrent.atomic.AtomicLong nextId = new java.util.concurrent.atomic.AtomicLong();
+    private java.util.concurrent.ScheduledExecutorService sweeper;
+    
+    public GameSessionRegistry() {
+        this(16);
+    }
+    
+    public GameSessionRegistry(int expectedSessions) {
+        sessions = new java.util.concurrent.ConcurrentHashMap<>(expectedSessions);
+    }
+    
+    public GameSession create(GameRules rules) {
+        GameSession session = new GameSession(nextId.incrementAndGet(), rules);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+    
+    // The session, or null if it never existed or was evicted
+    public GameSession get(long id) {
+        GameSession session = sessions.get(id);
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+    
+    public GameState play(long id, int row, int col) throws InvalidMoveException {
+        GameSession session = sessions.get(id);
+        if (session == null) {
+            throw new InvalidMoveException("No such game: " + id);
+        }
+        return session.play(row, col);
+    }
+    
+    public boolean remove(long id) {
+        return sessions.remove(id) != null;
+    }
+    
+    public int size() {
+        return sessions.size();
+    }
+    
+    public long estimateBytes() {
+        return (long) sessions.size() * ESTIMATED_BYTES_PER_SESSION;
+    }
+    
+    // Removes the sessions not used for maxIdleMillis and returns how many went
+    public int evictIdle(long maxIdleMillis) {
+        long cutoff = System.nanoTime() - maxIdleMillis * 1_000_000L;
+        int evicted = 0;
+        for (GameSession session : sessions.values()) {
+            // Compare as a difference, since nanoTime may wrap
+            if (session.getLastAccessNanos() - cutoff <= 0 && sessions.remove(session.getId(), session)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+    
+    public synchronized void startEviction(long maxIdleMillis, long periodMillis) {
+        stopEviction();
+        sweeper = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> evictIdle(maxIdleMillis),
+                periodMillis, periodMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized void stopEviction() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+}
+
+// 53. Memory per session and move throughput of the session registry under concurrent load
+// Run with: java GameSessionRegistryBenchmark [sessions] [threads] [seconds]
+class GameSessionRegistryBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+        GameRules rules = new GameRules(3);
+        
+        long before = usedHeap();
+        GameSessionRegistry registry = new GameSessionRegistry(count);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = registry.create(rules).getId();
+        }
+        long after = usedHeap();
+        // The measurement includes the benchmark's own ids array, 8 bytes per session
+        System.out.printf("%,d sessions: %,d bytes measured (%d per session), %d estimated per session%n",
+                count, after - before, (after - before) / count, GameSessionRegistry.ESTIMATED_BYTES_PER_SESSION);
+        
+        // Every thread plays random moves in random games, restarting finished ones
+        java.util.concurrent.atomic.LongAdder moves = new java.util.concurrent.atomic.LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers[t] = new Thread(() -> {
+                java.util.SplittableRandom random = new java.util.SplittableRandom(seed);
+                long played = 0;
+                while ((played & 1023) != 0 || System.nanoTime() < end) {
+                    GameSession session = registry.get(ids[random.nextInt(count)]);
+                    if (session.getStatus() != GameState.IN_PROGRESS) {
+                        session.reset();
+                        continue;
+                    }
+                    long free = ~session.getOccupied() & ((1L << rules.getCellCount()) - 1);
+                    int skip = random.nextInt(Long.bitCount(free));
+                    for (int i = 0; i < skip; i++) {
+                        free &= free - 1;
+                    }
+                    int index = Long.numberOfTrailingZeros(free);
+                    try {
+                        session.play(index / rules.getCols(), index % rules.getCols());
+                        played++;
+                    } catch (InvalidMoveException e) {
+                        // Another thread took the cell or finished the game first
+                    }
+                }
+                moves.add(played);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("%d threads: %,.0f moves/s%n", threads, moves.sum() / (double) seconds);
+        
+        System.out.printf("Evicted %,d idle sessions, %,d left%n", registry.evictIdle(0), registry.size());
+    }
+    
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// 54. Where a session gets the next move for a player, as row * cols + col
+// Implementations may block; the session's thread simply waits.
+interface MoveSource {
+    int nextMove(GameController controller, Player player) throws InterruptedException;
+}
+
+// 55. Moves handed in from outside, e.g. by a network handler for a human player
+class QueuedMoveSource implements MoveSource {
+    private final java.util.concurrent.BlockingQueue<Integer> moves = new java.util.concurrent.LinkedBlockingQueue<>();
+    
+    public void submit(int row, int col, int cols) {
+        moves.add(row * cols + col);
+    }
+    
+    @Override
+    public int nextMove(GameController controller, Player player) throws InterruptedException {
+        return moves.take();
+    }
+}
+
+// 56. Runs each game session on its own thread, blocking naturally on its next move
+// Sessions run on virtual threads where the JVM has them (Java 21+, looked
+// up by reflection so the code still compiles and runs on older JVMs, where
+// each session gets a small-stack platform thread instead). Computer moves
+// are searched on a bounded pool of platform threads: a session only parks
+// on the result, so long searches never occupy a virtual thread's carrier.
+// GameController guards its state with a ReentrantLock rather than
+// synchronized, which a virtual thread can park inside without pinning.
+class SessionRuntime {
+    private static final long PLATFORM_SESSION_STACK_BYTES = 256 * 1024;
+    
+    private final java.util.concurrent.ExecutorService sessions;
+    private final java.util.concurrent.ExecutorService ai;
+    private final boolean virtual;
+    
+    public SessionRuntime(int aiThreads) {
+        java.util.concurrent.ExecutorService executor = newVirtualThreadExecutor();
+        this.virtual = executor != null;
+        this.sessions = executor != null ? executor : java.util.concurrent.Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(null, runnable, "session", PLATFORM_SESSION_STACK_BYTES);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ai = java.util.concurrent.Executors.newFixedThreadPool(aiThreads, runnable -> {
+            Thread thread = new Thread(runnable, "session-ai");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private static java.util.concurrent.ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (java.util.concurrent.ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+    
+    // Move source for a ComputerPlayer: searches on the AI pool and waits for the answer
+    public MoveSource computerMoves() {
+        return (controller, player) -> {
+            ComputerPlayer computer = (ComputerPlayer) player;
+            Position snapshot = controller.withBoard(board -> Position.fromBoard(board, computer));
+            java.util.concurrent.Future<Integer> move = ai.submit(() -> computer.chooseMove(snapshot));
+            try {
+                return move.get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                throw new IllegalStateException("Computer move failed", e.getCause());
+            } catch (InterruptedException e) {
+                move.cancel(true);
+                throw e;
+            }
+        };
+    }
+    
+    // Plays the given number of games on the session's own thread and
+    // completes with each game's winner (null for a tie)
+    public java.util.concurrent.CompletableFuture<java.util.List<Player>> start(GameController controller,
+            java.util.Map<Player, MoveSource> sources, int games) {
+        java.util.concurrent.CompletableFuture<java.util.List<Player>> result = new java.util.concurrent.CompletableFuture<>();
+        sessions.execute(() -> {
+            try {
+                java.util.List<Player> winners = new java.util.ArrayList<>();
+                int cols = controller.withBoard(Board::getCols);
+                for (int game = 0; game < games; game++) {
+                    controller.startNewGame();
+                    while (!controller.isGameOver()) {
+                        Player player = controller.getCurrentPlayer();
+                        int move = sources.get(player).nextMove(controller, player);
+                        // An invalid move is dropped and the same player asked again
+                        controller.tryMove(player, move / cols, move % cols);
+                    }
+                    winners.add(controller.getWinner());
+                }
+                result.complete(winners);
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+    
+    // Interrupts running sessions and stops both pools
+    public void shutdown() {
+        sessions.shutdownNow();
+        ai.shutdownNow();
+    }
+}
+
+// 57. Thread-per-session runtime against a callback model, over a million moves
+// Both run the same sessions of random computer players on 3x3 through
+// GameController. The callback model never blocks: each move is a
+// CompletableFuture stage on the AI pool whose completion schedules the
+// next one. Moves are nearly free, so the numbers show scheduling overhead.
+// Run with: java SessionRuntimeBenchmark [sessions] [total moves] [ai threads]
+class SessionRuntimeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length >= 1 ? Integer.parseInt(args[0]) : 1_000;
+        long totalMoves = args.length >= 2 ? Long.parseLong(args[1]) : 1_000_000;
+        int aiThreads = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        // A 3x3 game between random players lasts about 7.6 moves
+        int gamesPerSession = (int) Math.max(1, totalMoves / sessions * 10 / 76);
+        
+        for (int round = 0; round < 2; round++) {
+            // The first round only warms up the JIT
+            boolean report = round == 1;
+            runThreadPerSession(sessions, gamesPerSession, aiThreads, report);
+            runCallbacks(sessions, gamesPerSession, aiThreads, report);
+        }
+    }
+    
+    private static GameController newSession(java.util.concurrent.atomic.LongAdder moves, long seed) {
+        GameController controller = new GameController(new BitBoard(3), new NoOpGameDataPersistence());
+        controller.addPlayer(new ComputerPlayer("A", "X", new RandomStrategy(seed)));
+        controller.addPlayer(new ComputerPlayer("B", "O", new RandomStrategy(seed + 1)));
+        controller.addObserver(new GameObserver() {
+            @Override
+            public void onGameUpdated(GameState state) {
+            }
+            
+            @Override
+            public void onGameOver(Player winner) {
+            }
+            
+            @Override
+            public void onMoveMade(int row, int col, Player player) {
+                moves.increment();
+            }
+        });
+        return controller;
+    }
+    
+    private static void runThreadPerSession(int sessions, int games, int aiThreads, boolean report) throws Exception {
+        SessionRuntime runtime = new SessionRuntime(aiThreads);
+        MoveSource computer = runtime.computerMoves();
+        java.util.concurrent.atomic.LongAdder moves = new java.util.concurrent.atomic.LongAdder();
+        java.util.List<java.util.concurrent.CompletableFuture<java.util.List<Player>>> results = new java.util.ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            GameController controller = newSession(moves, 2L * i);
+            java.util.Map<Player, MoveSource> sources = new java.util.HashMap<>();
+            for (Player player : controller.getPlayers()) {
+                sources.put(player, computer);
+            }
+            results.add(runtime.start(controller, sources, games));
+        }
+        for (java.util.concurrent.CompletableFuture<java.util.List<Player>> result : results) {
+            result.get();
+        }
+        long nanos = System.nanoTime() - start;
+        runtime.shutdown();
+        if (report) {
+            print((runtime.usesVirtualThreads() ? "virtual" : "platform") + " thread per session", moves.sum(), nanos);
+        }
+    }
+    
+    private static void runCallbacks(int sessions, int games, int aiThreads, boolean report) throws Exception {
+        java.util.concurrent.ExecutorService ai = java.util.concurrent.Executors.newFixedThreadPool(aiThreads);
+        java.util.concurrent.atomic.LongAdder moves = new java.util.concurrent.atomic.LongAdder();
+        java.util.List<java.util.concurrent.CompletableFuture<Void>> results = new java.util.ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            GameController controller = newSession(moves, 2L * i);
+            java.util.concurrent.CompletableFuture<Void> done = new java.util.concurrent.CompletableFuture<>();
+            controller.startNewGame();
+            step(controller, ai, games, done);
+            results.add(done);
+        }
+        for (java.util.concurrent.CompletableFuture<Void> result : results) {
+            result.get();
+        }
+        long nanos = System.nanoTime() - start;
+        ai.shutdown();
+        if (report) {
+            print("callbacks", moves.sum(), nanos);
+        }
+    }
+    
+    // Schedules the next move of the session; its completion schedules the one after
+    private static void step(GameController controller, java.util.concurrent.Executor ai, int gamesLeft,
+            java.util.concurrent.CompletableFuture<Void> done) {
+        if (controller.isGameOver()) {
+            if (gamesLeft <= 1) {
+                done.complete(null);
+                return;
+            }
+            gamesLeft--;
+            controller.startNewGame();
+        }
+        int remaining = gamesLeft;
+        ComputerPlayer computer = (ComputerPlayer) controller.getCurrentPlayer();
+        Position snapshot = controller.withBoard(board -> Position.fromBoard(board, computer));
+        java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+            try {
+                return computer.chooseMove(snapshot);
+            } catch (InvalidMoveException e) {
+                throw new java.util.concurrent.CompletionException(e);
+            }
+        }, ai).whenComplete((move, failure) -> {
+            if (failure != null) {
+                done.completeExceptionally(failure);
+                return;
+            }
+            controller.tryMove(computer, move / 3, move % 3);
+            step(controller, ai, remaining, done);
+        });
+    }
+    
+    private static void print(String model, long moves, long nanos) {
+        System.out.printf("%-28s %,d moves in %,d ms: %,.0f moves/s%n",
+                model, moves, nanos / 1_000_000, moves * 1e9 / nanos);
+    }
+}
+
+// 58. Hands GameObserver events to another observer on a dedicated thread
+// Events go into a bounded single-producer, single-consumer ring buffer.
+// GameController notifies observers one move at a time under its lock, which
+// makes it the single producer even when moves come from several threads.
+// When the buffer is full the policy decides: BLOCK waits for space, DROP
+// discards the event (never a game-over), and COALESCE holds events back in
+// a catch-up list instead of waiting. In that list a state is replaced by
+// any later move or state, and a new game discards the held-back moves and
+// states of the previous one, keeping its game-over; so the list never
+// holds more than one game's moves. Once the buffer has drained the list is
+// delivered in order, and events go through the buffer again. Neither DROP
+// nor COALESCE ever makes a move wait for the observer.
+class AsyncGameObserver implements GameObserver {
+    enum Policy { BLOCK, DROP, COALESCE }
+    
+    private static final byte MOVE = 0;
+    private static final byte UPDATE = 1;
+    private static final byte GAME_OVER = 2;
+    
+    // An event held back under COALESCE
+    private static final class Held {
+        final byte kind;
+        final int row;
+        final int col;
+        final Object ref;
+        final boolean newGame;
+        final long enqueueNanos;
+        
+        Held(byte kind, int row, int col, Object ref, boolean newGame) {
+            this.kind = kind;
+            this.row = row;
+            this.col = col;
+            this.ref = ref;
+            this.newGame = newGame;
+            this.enqueueNanos = System.nanoTime();
+        }
+    }
+    
+    private final GameController controller;
+    private final GameObserver delegate;
+    private final Policy policy;
+    private final int capacity;
+    private final int mask;
+    private final byte[] kinds;
+    private final int[] rows;
+    private final int[] cols;
+    private final Object[] refs;
+    private final long[] enqueueNanos;
+    private final Thread dispatcher;
+    
+    // tail is written by the producer only, head by the dispatcher only
+    private volatile long head;
+    private volatile long tail;
+    private volatile boolean dispatcherParked;
+    private volatile boolean closed;
+    // Catch-up list under COALESCE, guarded by itself; while holding is set
+    // every event goes there, behind those already in the buffer
+    private final java.util.List<Held> held = new java.util.ArrayList<>();
+    private volatile boolean holding;
+    // Producer only: a state with no move since the previous one starts a new game
+    private boolean movedSinceUpdate;
+    
+    private volatile long dropped;
+    private volatile long coalesced;
+    private volatile long maxDepth;
+    private volatile long dispatched;
+    private volatile long totalLagNanos;
+    private volatile long maxLagNanos;
+    
+    // The capacity is rounded up to a power of two
+    public AsyncGameObserver(GameObserver delegate, Policy policy, int capacity) {
+        this(null, delegate, policy, capacity);
+    }
+    
+    // Observer registered with controller, which close() unregisters it from
+    public AsyncGameObserver(GameController controller, GameObserver delegate, Policy policy, int capacity) {
+        this.controller = controller;
+        this.delegate = delegate;
+        this.policy = policy;
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.kinds = new byte[this.capacity];
+        this.rows = new int[this.capacity];
+        this.cols = new int[this.capacity];
+        this.refs = new Object[this.capacity];
+        this.enqueueNanos = new long[this.capacity];
+        this.dispatcher = new Thread(this::dispatch, "observer-" + delegate.getClass().getSimpleName());
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    public GameObserver getDelegate() {
+        return delegate;
+    }
+    
+    @Override
+    public void onMoveMade(int row, int col, Player player) {
+        movedSinceUpdate = true;
+        offer(MOVE, row, col, player, false);
+    }
+    
+    @Override
+    public void onGameUpdated(GameState state) {
+        boolean newGame = !movedSinceUpdate;
+        movedSinceUpdate = false;
+        offer(UPDATE, 0, 0, state, newGame);
+    }
+    
+    @Override
+    public void onGameOver(Player winner) {
+        movedSinceUpdate = false;
+        offer(GAME_OVER, 0, 0, winner, false);
+    }
+    
+    private boolean offer(byte kind, int row, int col, Object ref, boolean newGame) {
+        if (closed) {
+            return false;
+        }
+        if (policy == Policy.COALESCE && (holding || tail - head >= capacity)) {
+            hold(new Held(kind, row, col, ref, newGame));
+            return true;
+        }
+        return enqueue(kind, row, col, ref);
+    }
+    
+    private void hold(Held event) {
+        synchronized (held) {
+            int last = held.size() - 1;
+            if (event.kind == UPDATE && event.newGame) {
+                // A new game supersedes the last one's moves and states; its result still counts
+                int kept = 0;
+                for (Held earlier : held) {
+                    if (earlier.kind == GAME_OVER) {
+                        held.set(kept++, earlier);
+                    }
+                }
+                coalesced += held.size() - kept;
+                held.subList(kept, held.size()).clear();
+            } else if (event.kind != GAME_OVER && last >= 0 && held.get(last).kind == UPDATE
+                    && !held.get(last).newGame) {
+                // A later move or state supersedes the last state
+                held.remove(last);
+                coalesced++;
+            }
+            held.add(event);
+            holding = true;
+        }
+        if (dispatcherParked) {
+            java.util.concurrent.locks.LockSupport.unpark(dispatcher);
+        }
+    }
+    
+    private boolean enqueue(byte kind, int row, int col, Object ref) {
+        long position = tail;
+        while (position - head >= capacity) {
+            if (closed) {
+                return false;
+            }
+            if (policy == Policy.DROP && kind != GAME_OVER) {
+                dropped++;
+                return false;
+            }
+            java.util.concurrent.locks.LockSupport.parkNanos(10_000);
+        }
+        int slot = (int) position & mask;
+        kinds[slot] = kind;
+        rows[slot] = row;
+        cols[slot] = col;
+        refs[slot] = ref;
+        enqueueNanos[slot] = System.nanoTime();
+        // The volatile write publishes the slot to the dispatcher
+        tail = position + 1;
+        long depth = position + 1 - head;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        if (dispatcherParked) {
+            java.util.concurrent.locks.LockSupport.unpark(dispatcher);
+        }
+        return true;
+    }
+    
+    private void dispatch() {
+        while (true) {
+            long position = head;
+            if (position == tail) {
+                // The buffer has drained, so held-back events are next in order
+                if (holding) {
+                    deliverHeld();
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                dispatcherParked = true;
+                // Re-check after announcing, so a concurrent offer is not missed
+                if (position == tail && !holding && !closed) {
+                    java.util.concurrent.locks.LockSupport.park(this);
+                }
+                dispatcherParked = false;
+                continue;
+            }
+            int slot = (int) position & mask;
+            byte kind = kinds[slot];
+            int row = rows[slot];
+            int col = cols[slot];
+            Object ref = refs[slot];
+            long lag = System.nanoTime() - enqueueNanos[slot];
+            refs[slot] = null;
+            head = position + 1;
+            deliver(kind, row, col, ref, lag);
+        }
+    }
+    
+    // Takes the whole catch-up list; the producer goes back to the buffer
+    // once it finds the list empty
+    private void deliverHeld() {
+        java.util.List<Held> events;
+        synchronized (held) {
+            events = new java.util.ArrayList<>(held);
+            held.clear();
+            holding = false;
+        }
+        for (Held event : events) {
+            deliver(event.kind, event.row, event.col, event.ref, System.nanoTime() - event.enqueueNanos);
+        }
+    }
+    
+    private void deliver(byte kind, int row, int col, Object ref, long lag) {
+        try {
+            if (kind == MOVE) {
+                delegate.onMoveMade(row, col, (Player) ref);
+            } else if (kind == UPDATE) {
+                delegate.onGameUpdated((GameState) ref);
+            } else {
+                delegate.onGameOver((Player) ref);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Observer failed: " + e);
+        }
+        dispatched++;
+        totalLagNanos += lag;
+        if (lag > maxLagNanos) {
+            maxLagNanos = lag;
+        }
+    }
+    
+    // Unregisters from the controller, delivers what is queued, then stops
+    // the dispatcher thread; later events are ignored
+    public void close() throws InterruptedException {
+        if (controller != null) {
+            controller.removeObserver(this);
+        }
+        closed = true;
+        java.util.concurrent.locks.LockSupport.unpark(dispatcher);
+        dispatcher.join();
+    }
+    
+    public Policy getPolicy() {
+        return policy;
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    public long getQueueDepth() {
+        return tail - head;
+    }
+    
+    public long getMaxQueueDepth() {
+        return maxDepth;
+    }
+    
+    public long getDispatchedCount() {
+        return dispatched;
+    }
+    
+    public long getDroppedCount() {
+        return dropped;
+    }
+    
+    public long getCoalescedCount() {
+        return coalesced;
+    }
+    
+    // Time from an event being queued to its delivery starting
+    public double getAverageLagMillis() {
+        long count = dispatched;
+        return count == 0 ? 0.0 : totalLagNanos / 1e6 / count;
+    }
+    
+    public double getMaxLagMillis() {
+        return maxLagNanos / 1e6;
+    }
+}
+
+// 59. Move latency with a slow observer, called directly and through each async policy
+// The observer waits (like a logger or a remote UI doing I/O) for a fixed
+// time per event, and moves come at a fixed pace; with a pause of 0 moves
+// come back to back and the queue fills up, which exercises the policies.
+// Run with: java AsyncObserverBenchmark [games] [observer micros] [pause micros]
+class AsyncObserverBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int games = args.length >= 1 ? Integer.parseInt(args[0]) : 200;
+        long observerMicros = args.length >= 2 ? Long.parseLong(args[1]) : 200;
+        long pauseMicros = args.length >= 3 ? Long.parseLong(args[2]) : 1000;
+        GameObserver slow = new GameObserver() {
+            @Override
+            public void onGameUpdated(GameState state) {
+                work(observerMicros);
+            }
+            
+            @Override
+            public void onGameOver(Player winner) {
+                work(observerMicros);
+            }
+            
+            @Override
+            public void onMoveMade(int row, int col, Player player) {
+                work(observerMicros);
+            }
+        };
+        System.out.println(games + " random 3x3 games, observer takes " + observerMicros
+                + " us per event, " + pauseMicros + " us between moves");
+        run("synchronous", games, pauseMicros, slow, null);
+        for (AsyncGameObserver.Policy policy : AsyncGameObserver.Policy.values()) {
+            run(policy.toString(), games, pauseMicros, slow, policy);
+        }
+    }
+    
+    private static void run(String name, int games, long pauseMicros, GameObserver observer,
+            AsyncGameObserver.Policy policy) throws InterruptedException {
+        GameController controller = new GameController(new BitBoard(3), new NoOpGameDataPersistence());
+        controller.addPlayer(new ComputerPlayer("A", "X", new RandomStrategy(1)));
+        controller.addPlayer(new ComputerPlayer("B", "O", new RandomStrategy(2)));
+        AsyncGameObserver async = policy == null ? null : controller.addAsyncObserver(observer, policy, 64);
+        if (async == null) {
+            controller.addObserver(observer);
+        }
+        
+        long moves = 0;
+        long moveNanos = 0;
+        long worstNanos = 0;
+        for (int game = 0; game < games; game++) {
+            controller.startNewGame();
+            while (!controller.isGameOver()) {
+                long start = System.nanoTime();
+                controller.makeComputerMove();
+                long nanos = System.nanoTime() - start;
+                moves++;
+                moveNanos += nanos;
+                worstNanos = Math.max(worstNanos, nanos);
+                work(pauseMicros);
+            }
+        }
+        System.out.printf("%-12s move %7.1f us avg, %8.1f us worst", name, moveNanos / 1e3 / moves, worstNanos / 1e3);
+        if (async != null) {
+            async.close();
+            System.out.printf("; delivered %,d, dropped %,d, coalesced %,d, max depth %d, lag %.2f ms avg / %.2f ms max",
+                    async.getDispatchedCount(), async.getDroppedCount(), async.getCoalescedCount(),
+                    async.getMaxQueueDepth(), async.getAverageLagMillis(), async.getMaxLagMillis());
+        }
+        System.out.println();
+    }
+    
+    private static void work(long micros) {
+        long end = System.nanoTime() + micros * 1000;
+        while (micros > 0 && System.nanoTime() < end) {
+            java.util.concurrent.locks.LockSupport.parkNanos(end - System.nanoTime());
+        }
+    }
+}
+
+// 60. Receives coalesced board changes, at most once per flush
+interface BoardDiffListener {
+    void onBoardDiff(BoardDiff diff);
+}
+
+// 61. The cells that changed since the last flush, with the game status at flush time
+class BoardDiff {
+    private final int[] cells;
+    private final Player[] players;
+    private final int changedCount;
+    private final boolean statusChanged;
+    private final boolean gameEnded;
+    private final Player endedWinner;
+    
+    public BoardDiff(int[] cells, Player[] players, int changedCount, boolean statusChanged,
+            boolean gameEnded, Player endedWinner) {
+        this.cells = cells;
+        this.players = players;
+        this.changedCount = changedCount;
+        this.statusChanged = statusChanged;
+        this.gameEnded = gameEnded;
+        this.endedWinner = endedWinner;
+    }
+    
+    public int getChangedCount() {
+        return changedCount;
+    }
+    
+    // Index (row * cols + col) of the i-th changed cell
+    public int getCell(int i) {
+        return cells[i];
+    }
+    
+    // Who holds the i-th changed cell now; null when it was cleared
+    public Player getPlayer(int i) {
+        return players[i];
+    }
+    
+    // Whose turn it is, or who won, may have changed
+    public boolean isStatusChanged() {
+        return statusChanged;
+    }
+    
+    // A game ended since the last flush
+    public boolean isGameEnded() {
+        return gameEnded;
+    }
+    
+    // Winner of the last game that ended since the last flush; null for a tie
+    public Player getEndedWinner() {
+        return endedWinner;
+    }
+}
+
+// 62. Merges bursts of game events into one board diff per flush
+// As an observer it only marks cells dirty, so it costs the move path next
+// to nothing. flush(), called once per frame or tick by whoever owns the
+// listener, reads the dirty cells from the board under the controller's
+// lock, compares them with what was delivered last time, and hands the
+// listener exactly the cells that changed. An update event without a move
+// before it (a new game) marks the whole board for comparison.
+class GameUpdateCoalescer implements GameObserver {
+    private final GameController controller;
+    private final BoardDiffListener listener;
+    private final int cols;
+    private final Player[] shown;
+    private final boolean[] dirty;
+    private final int[] dirtyCells;
+    private int dirtyCount;
+    private boolean fullScan = true;
+    private boolean statusChanged = true;
+    private boolean movedSinceUpdate;
+    private boolean gameEnded;
+    private Player endedWinner;
+    
+    private long events;
+    private long flushes;
+    
+    public GameUpdateCoalescer(GameController controller, BoardDiffListener listener) {
+        this.controller = controller;
+        this.listener = listener;
+        int cellCount = controller.withBoard(board -> board.getRows() * board.getCols());
+        this.cols = controller.withBoard(Board::getCols);
+        this.shown = new Player[cellCount];
+        this.dirty = new boolean[cellCount];
+        this.dirtyCells = new int[cellCount];
+    }
+    
+    @Override
+    public synchronized void onMoveMade(int row, int col, Player player) {
+        events++;
+        int index = row * cols + col;
+        if (!dirty[index]) {
+            dirty[index] = true;
+            dirtyCells[dirtyCount++] = index;
+        }
+        movedSinceUpdate = true;
+        statusChanged = true;
+    }
+    
+    @Override
+    public synchronized void onGameUpdated(GameState state) {
+        events++;
+        if (!movedSinceUpdate) {
+            fullScan = true;
+        }
+        movedSinceUpdate = false;
+        statusChanged = true;
+    }
+    
+    @Override
+    public synchronized void onGameOver(Player winner) {
+        events++;
+        gameEnded = true;
+        endedWinner = winner;
+        statusChanged = true;
+        movedSinceUpdate = false;
+    }
+    
+    // Delivers what changed since the last flush, if anything, on the calling thread
+    public void flush() {
+        int[] cells;
+        boolean scanAll;
+        boolean status;
+        boolean ended;
+        Player winner;
+        synchronized (this) {
+            if (dirtyCount == 0 && !fullScan && !statusChanged && !gameEnded) {
+                return;
+            }
+            cells = java.util.Arrays.copyOf(dirtyCells, dirtyCount);
+            for (int i = 0; i < dirtyCount; i++) {
+                dirty[dirtyCells[i]] = false;
+            }
+            dirtyCount = 0;
+            scanAll = fullScan;
+            status = statusChanged;
+            ended = gameEnded;
+            winner = endedWinner;
+            fullScan = false;
+            statusChanged = false;
+            gameEnded = false;
+            endedWinner = null;
+        }
+        
+        // Lock order is always coalescer, then controller, and never both at once
+        int[] candidates = cells;
+        int[] changed = new int[scanAll ? shown.length : cells.length];
+        Player[] players = new Player[changed.length];
+        int count = controller.withBoard(board -> {
+            int n = 0;
+            int limit = scanAll ? shown.length : candidates.length;
+            for (int i = 0; i < limit; i++) {
+                int index = scanAll ? i : candidates[i];
+                Player player = board.getPlayerAt(index / cols, index % cols);
+                if (player != shown[index]) {
+                    shown[index] = player;
+                    changed[n] = index;
+                    players[n] = player;
+                    n++;
+                }
+            }
+            return n;
+        });
+        synchronized (this) {
+            flushes++;
+        }
+        listener.onBoardDiff(new BoardDiff(changed, players, count, status, ended, winner));
+    }
+    
+    public synchronized long getEventCount() {
+        return events;
+    }
+    
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+}
+
+// 63. Long-lived append-only writer with group commit, one line per game result
+// Callers queue lines and get a future each. A single daemon thread writes
+// everything queued as one batch as soon as batchSize lines are waiting,
+// the oldest has waited maxDelayMillis, or a caller is blocked on its line,
+// optionally forces the batch to disk, and then completes the batch's
+// futures. Lines queued while a batch is being written go into the next one.
+// There is one writer per file, shared by everyone who acquires it, so
+// results from many games are committed together; the last release() closes
+// it, and a shutdown hook drains it so a normal exit loses nothing. If the
+// file cannot be opened or written, only that batch fails and the next
+// batch opens it again.
+class BatchedGameResultWriter {
+    enum FsyncPolicy { NEVER, EVERY_BATCH }
+    
+    // Open writers by canonical path, guarded by the class lock
+    private static final java.util.Map<java.nio.file.Path, BatchedGameResultWriter> OPEN = new java.util.HashMap<>();
+    
+    private final java.nio.file.Path path;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final FsyncPolicy fsyncPolicy;
+    private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+    private final java.util.concurrent.locks.Condition wake = lock.newCondition();
+    private int references;
+    
+    // Guarded by lock; the writer swaps the queue with the spare lists it has emptied
+    private java.util.List<String> lines = new java.util.ArrayList<>();
+    private java.util.List<java.util.concurrent.CompletableFuture<Void>> futures = new java.util.ArrayList<>();
+    private java.util.List<String> spareLines = new java.util.ArrayList<>();
+    private java.util.List<java.util.concurrent.CompletableFuture<Void>> spareFutures = new java.util.ArrayList<>();
+    private long oldestQueuedNanos;
+    private boolean flushRequested;
+    private boolean closed;
+    private java.util.concurrent.CompletableFuture<Void> lastFuture = java.util.concurrent.CompletableFuture.completedFuture(null);
+    // First batch failure since the last flush(), which reports it once
+    private PersistenceException unreportedFailure;
+    private Thread writer;
+    private Thread shutdownHook;
+    
+    // Used by the writer thread only; null until opened and after a failure
+    private java.nio.channels.FileChannel channel;
+    
+    private volatile long batches;
+    private volatile long records;
+    
+    private BatchedGameResultWriter(java.nio.file.Path path, int batchSize, long maxDelayMillis, FsyncPolicy fsyncPolicy) {
+        this.path = path;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000L;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+    
+    // Returns the writer for the file, opening it on first use; every call
+    // must be matched by a release()
+    public static synchronized BatchedGameResultWriter acquire(java.nio.file.Path path, int batchSize,
+            long maxDelayMillis, FsyncPolicy fsyncPolicy) {
+        java.nio.file.Path key = canonical(path);
+        BatchedGameResultWriter shared = OPEN.get(key);
+        if (shared == null) {
+            shared = new BatchedGameResultWriter(key, batchSize, maxDelayMillis, fsyncPolicy);
+            OPEN.put(key, shared);
+        } else if (shared.batchSize != batchSize || shared.maxDelayNanos != maxDelayMillis * 1_000_000L
+                || shared.fsyncPolicy != fsyncPolicy) {
+            throw new IllegalArgumentException(key + " is already open with other batch settings");
+        }
+        shared.references++;
+        return shared;
+    }
+    
+    private static java.nio.file.Path canonical(java.nio.file.Path path) {
+        try {
+            return path.toFile().getCanonicalFile().toPath();
+        } catch (java.io.IOException e) {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+    
+    // Drops one reference; the last one writes out what is queued and stops the writer
+    public void release() {
+        synchronized (BatchedGameResultWriter.class) {
+            if (--references > 0) {
+                return;
+            }
+            OPEN.remove(path, this);
+        }
+        close();
+    }
+    
+    // Completes once the line is written (and forced, under EVERY_BATCH);
+    // urgent skips the wait for a full batch, for callers about to block on it
+    public java.util.concurrent.CompletableFuture<Void> write(String line, boolean urgent) {
+        java.util.concurrent.CompletableFuture<Void> done = new java.util.concurrent.CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closed) {
+                done.completeExceptionally(new PersistenceException("Result writer for " + path + " is closed"));
+                return done;
+            }
+            if (writer == null) {
+                try {
+                    start();
+                } catch (IllegalStateException e) {
+                    // The JVM is shutting down, so nothing would drain this writer
+                    closed = true;
+                    done.completeExceptionally(new PersistenceException("Result writer for " + path + " is closed", e));
+                    return done;
+                }
+            }
+            if (lines.isEmpty()) {
+                oldestQueuedNanos = System.nanoTime();
+                wake.signal();
+            }
+            lines.add(line);
+            futures.add(done);
+            lastFuture = done;
+            if (urgent) {
+                flushRequested = true;
+                wake.signal();
+            } else if (lines.size() >= batchSize) {
+                wake.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return done;
+    }
+    
+    private void start() {
+        shutdownHook = new Thread(this::close, "result-writer-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        writer = new Thread(this::run, "result-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Writes out everything queued so far and waits for it; throws if any
+    // batch failed since the last flush, even if later ones succeeded
+    public void flush() throws PersistenceException {
+        java.util.concurrent.CompletableFuture<Void> last;
+        lock.lock();
+        try {
+            last = lastFuture;
+            flushRequested = true;
+            wake.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            last.join();
+        } catch (java.util.concurrent.CompletionException e) {
+            // Recorded as a failure below
+        }
+        PersistenceException failure;
+        lock.lock();
+        try {
+            failure = unreportedFailure;
+            unreportedFailure = null;
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private void close() {
+        Thread thread;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            wake.signal();
+            thread = writer;
+        } finally {
+            lock.unlock();
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    static void await(java.util.concurrent.CompletableFuture<Void> done) throws PersistenceException {
+        try {
+            done.join();
+        } catch (java.util.concurrent.CompletionException e) {
+            if (e.getCause() instanceof PersistenceException) {
+                throw (PersistenceException) e.getCause();
+            }
+            throw new PersistenceException("Failed to save game result", e.getCause());
+        }
+    }
+    
+    private void run() {
+        try {
+            java.util.List<String> batchLines;
+            java.util.List<java.util.concurrent.CompletableFuture<Void>> batchFutures;
+            while (true) {
+                lock.lock();
+                try {
+                    waitForBatch();
+                    if (lines.isEmpty()) {
+                        if (closed) {
+                            return;
+                        }
+                        flushRequested = false;
+                        continue;
+                    }
+                    batchLines = lines;
+                    batchFutures = futures;
+                    lines = spareLines;
+                    futures = spareFutures;
+                    flushRequested = false;
+                } finally {
+                    lock.unlock();
+                }
+                writeBatch(batchLines, batchFutures);
+                batchLines.clear();
+                batchFutures.clear();
+                lock.lock();
+                try {
+                    spareLines = batchLines;
+                    spareFutures = batchFutures;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            closeChannel();
+            retire();
+        }
+    }
+    
+    // Once the thread ends, however it was closed, the next acquire() of the
+    // file gets a fresh writer
+    private void retire() {
+        synchronized (BatchedGameResultWriter.class) {
+            OPEN.remove(path, this);
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down: this is the hook running
+        }
+    }
+    
+    // Called with the lock held
+    private void waitForBatch() {
+        try {
+            while (!closed && !flushRequested && lines.size() < batchSize) {
+                if (lines.isEmpty()) {
+                    wake.await();
+                } else {
+                    long left = oldestQueuedNanos + maxDelayNanos - System.nanoTime();
+                    if (left <= 0) {
+                        return;
+                    }
+                    wake.awaitNanos(left);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Treated like close: whatever is queued is still written, then the writer retires
+            closed = true;
+        }
+    }
+    
+    private void writeBatch(java.util.List<String> batchLines,
+            java.util.List<java.util.concurrent.CompletableFuture<Void>> batchFutures) {
+        StringBuilder text = new StringBuilder();
+        for (String line : batchLines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        try {
+            if (channel == null) {
+                channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.CREATE,
+                        java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+            }
+            java.nio.ByteBuffer bytes = java.nio.charset.Charset.defaultCharset().encode(text.toString());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            if (fsyncPolicy == FsyncPolicy.EVERY_BATCH) {
+                channel.force(false);
+            }
+            batches++;
+            records += batchLines.size();
+            for (java.util.concurrent.CompletableFuture<Void> done : batchFutures) {
+                done.complete(null);
+            }
+        } catch (java.io.IOException e) {
+            // Fail this batch only; the next one reopens the file
+            closeChannel();
+            PersistenceException failure = new PersistenceException("Failed to save game result", e);
+            lock.lock();
+            try {
+                if (unreportedFailure == null) {
+                    unreportedFailure = failure;
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (java.util.concurrent.CompletableFuture<Void> done : batchFutures) {
+                done.completeExceptionally(failure);
+            }
+        }
+    }
+    
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (java.io.IOException e) {
+            System.err.println("Failed to close " + path + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+    
+    public long getBatchCount() {
+        return batches;
+    }
+    
+    public long getRecordCount() {
+        return records;
+    }
+}
+
+// 64. Throughput of saving game results one file open per result against group commit
+// Run with: java GameResultWriterBenchmark [results] [threads]
+class GameResultWriterBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 20_000;
+        int threads = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+        run("open/close per result", count, threads, 1, BatchedGameResultWriter.FsyncPolicy.NEVER);
+        run("group commit", count, threads, FileGameDataPersistence.DEFAULT_BATCH_SIZE,
+                BatchedGameResultWriter.FsyncPolicy.NEVER);
+        run("group commit + fsync", count, threads, FileGameDataPersistence.DEFAULT_BATCH_SIZE,
+                BatchedGameResultWriter.FsyncPolicy.EVERY_BATCH);
+    }
+    
+    // Each thread saves its share synchronously, as GameController threads would
+    private static void run(String name, int count, int threads, int batchSize,
+            BatchedGameResultWriter.FsyncPolicy fsyncPolicy) throws Exception {
+        java.io.File file = java.io.File.createTempFile("game_results", ".txt");
+        file.deleteOnExit();
+        FileGameDataPersistence persistence = new FileGameDataPersistence(file.getPath(), batchSize,
+                FileGameDataPersistence.DEFAULT_MAX_DELAY_MILLIS, fsyncPolicy);
+        GameResult result = new GameResult();
+        result.setDate(new java.util.Date());
+        result.setResult("A won");
+        
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count / threads; i++) {
+                        persistence.saveGameResult(result);
+                    }
+                } catch (PersistenceException e) {
+                    System.err.println(e.getMessage());
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - start;
+        int saved = persistence.loadGameResults().size();
+        persistence.close();
+        System.out.printf("%-24s %,d results in %,d ms: %,.0f results/s%n",
+                name, saved, nanos / 1_000_000, saved * 1e9 / nanos);
+    }
 }
\ No newline at end of file